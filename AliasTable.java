@@ -0,0 +1,75 @@
+/** Samples the characters of a list in constant time, using Vose's alias method.
+ *  The table has one column per character. Column i selects its own character with
+ *  probability prob[i], and otherwise selects the character of column alias[i].
+ *  Each character is selected with the same probability as in the list, but the
+ *  characters are not selected by the same random numbers as in a walk over the list. */
+public class AliasTable implements Sampler {
+
+    // The characters of the list, in list order
+    private final char[] symbols;
+
+    // The probability that each column selects its own character
+    private final double[] prob;
+
+    // The column whose character is selected otherwise
+    private final int[] alias;
+
+    /** Constructs an alias table for the characters of the given (non-empty) distribution. */
+    public AliasTable(Distribution probs) {
+        CharData[] arr = probs.toArray();
+        int n = arr.length;
+        symbols = new char[n];
+        prob = new double[n];
+        alias = new int[n];
+        // Every column holds a weight of total. Scaling the counts by n keeps all the
+        // arithmetic exact until the final division.
+        long total = 0;
+        long[] scaled = new long[n];
+        for (int i = 0; i < n; i++) {
+            symbols[i] = arr[i].chr;
+            scaled[i] = (long) arr[i].count * n;
+            total += arr[i].count;
+        }
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallSize = 0;
+        int largeSize = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            if (scaled[i] < total) {
+                small[smallSize++] = i;
+            } else {
+                large[largeSize++] = i;
+            }
+        }
+        while (smallSize > 0 && largeSize > 0) {
+            int s = small[--smallSize];
+            int l = large[--largeSize];
+            prob[s] = (double) scaled[s] / total;
+            alias[s] = l;
+            // The large column gives the rest of the small column's weight
+            scaled[l] -= total - scaled[s];
+            if (scaled[l] < total) {
+                small[smallSize++] = l;
+            } else {
+                large[largeSize++] = l;
+            }
+        }
+        while (largeSize > 0) {
+            prob[large[--largeSize]] = 1.0;
+        }
+        while (smallSize > 0) {
+            prob[small[--smallSize]] = 1.0;
+        }
+    }
+
+    /** Returns the number of characters in this table. */
+    public int getSize() {
+        return symbols.length;
+    }
+
+    public char sample(double random) {
+        double scaled = random * symbols.length;
+        int column = (int) scaled;
+        return (scaled - column < prob[column]) ? symbols[column] : symbols[alias[column]];
+    }
+}
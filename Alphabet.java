@@ -0,0 +1,59 @@
+/** Represents the alphabet of a corpus.
+ *  Every character seen in the corpus gets a small code (1, 2, 3, ...), in order of
+ *  first appearance. Code 0 is reserved for "no character", so a window packed from
+ *  codes never looks like an empty slot. */
+public class Alphabet {
+
+    // The number of bits used to store one code
+    public static final int BITS = 8;
+
+    // The largest number of distinct characters an alphabet can hold
+    public static final int CAPACITY = (1 << BITS) - 1;
+
+    // Maps each character to its code (0 if the character was not seen yet)
+    private final byte[] codes;
+
+    // Maps each code back to its character
+    private final char[] symbols;
+
+    // The number of characters in this alphabet
+    private int size;
+
+    /** Constructs an empty alphabet. */
+    public Alphabet() {
+        codes = new byte[Character.MAX_VALUE + 1];
+        symbols = new char[CAPACITY + 1];
+        size = 0;
+    }
+
+    /** Returns the number of characters in this alphabet. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the code of the given character, or 0 if it is not in this alphabet. */
+    public int codeOf(char chr) {
+        return codes[chr] & CAPACITY;
+    }
+
+    /** Returns the character that has the given code. */
+    public char charOf(int code) {
+        return symbols[code];
+    }
+
+    /** Returns the code of the given character, adding it to this alphabet if needed.
+     *  Returns 0 if the character is new and the alphabet is already full. */
+    public int add(char chr) {
+        int code = codeOf(chr);
+        if (code != 0) {
+            return code;
+        }
+        if (size == CAPACITY) {
+            return 0;
+        }
+        size++;
+        codes[chr] = (byte) size;
+        symbols[size] = chr;
+        return size;
+    }
+}
@@ -0,0 +1,258 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+
+/** A language model that uses every window length from 1 to a maximum order.
+ *  Training counts all the orders in one pass over the corpus: each character updates the
+ *  distribution of the 1, 2, ..., maxOrder characters before it, and the distribution of
+ *  all the characters (order 0). When generate reaches a window it has never seen, it backs
+ *  off to the longest shorter window that it has seen, so it never stops early.
+ *  All the orders share one table. Windows of up to LanguageModel.MAX_PACKED_WINDOW characters
+ *  are packed into long keys: since alphabet codes start at 1, windows of different lengths
+ *  never have the same key. Longer windows, and corpora with more than Alphabet.CAPACITY
+ *  distinct characters, use String keys.
+ *  When all of its windows were seen, a backoff model of order k generates the same
+ *  characters as a LanguageModel with window length k and the same seed. */
+public class BackoffLanguageModel {
+
+    // The longest window of this model
+    private final int maxOrder;
+
+    // The random number generator used by this model
+    private final Random randomGenerator;
+
+    // The distribution of all the trained characters (the window of length 0)
+    private final Distribution unigram;
+
+    // Maps the packed windows of all the orders to their distributions. Null when windows
+    // are String keys.
+    private ContextTable packedMap;
+
+    // Maps the windows of all the orders to their distributions, when keys are not packed
+    private final HashMap<String, Distribution> contextMap;
+
+    // The characters seen by this model, used for packing windows
+    private final Alphabet alphabet;
+
+    // The last maxOrder trained characters, the most recent one last
+    private final char[] history;
+
+    // The packed form of the history
+    private long historyKey;
+
+    // The number of characters in the history (at most maxOrder)
+    private int filled;
+
+    // The distributions whose counts changed since their probabilities were computed
+    private final ArrayList<Distribution> changedLists = new ArrayList<Distribution>();
+
+    /** Constructs a backoff model with the given maximum order and seed. Generating texts
+     *  from this model multiple times with the same seed produces the same random texts. */
+    public BackoffLanguageModel(int maxOrder, int seed) {
+        this(maxOrder, new Random(seed));
+    }
+
+    /** Constructs a backoff model with the given maximum order. */
+    public BackoffLanguageModel(int maxOrder) {
+        this(maxOrder, new Random());
+    }
+
+    private BackoffLanguageModel(int maxOrder, Random randomGenerator) {
+        if (maxOrder < 1) {
+            throw new IllegalArgumentException("maximum order must be positive");
+        }
+        this.maxOrder = maxOrder;
+        this.randomGenerator = randomGenerator;
+        alphabet = new Alphabet();
+        unigram = new CharDistribution(alphabet);
+        contextMap = new HashMap<String, Distribution>();
+        if (maxOrder <= LanguageModel.MAX_PACKED_WINDOW) {
+            packedMap = new ContextTable();
+        }
+        history = new char[maxOrder];
+    }
+
+    /** Returns the maximum order (the longest window) of this model. */
+    public int getMaxOrder() {
+        return maxOrder;
+    }
+
+    /** Returns the number of windows of this model, of all the orders from 1 to maxOrder. */
+    public int getSize() {
+        return (packedMap != null) ? packedMap.getSize() : contextMap.size();
+    }
+
+    /** Trains this model on the text in the given file. Like LanguageModel.train, ignores the
+     *  trailing whitespace of the file. */
+    public void train(String fileName) {
+        filled = 0;
+        historyKey = 0;
+        CorpusReader reader = new CorpusReader(fileName);
+        try {
+            reader.readTrimmed(this::trainChars);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Trains this model on the given text, as a document of its own. */
+    public void trainText(CharSequence text) {
+        filled = 0;
+        historyKey = 0;
+        char[] chars = text.toString().toCharArray();
+        trainChars(chars, 0, chars.length);
+    }
+
+    // Trains this model on the characters chars[from] .. chars[to - 1], which follow the
+    // characters in the history.
+    private void trainChars(char[] chars, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            int code = alphabet.add(c);
+            if (code == 0 && packedMap != null) {
+                unpackKeys();
+            }
+            update(unigram, c);
+            for (int order = 1; order <= filled; order++) {
+                Distribution probs;
+                if (packedMap != null) {
+                    long key = historyKey & mask(order);
+                    probs = packedMap.get(key);
+                    if (probs == null) {
+                        probs = new CharDistribution(alphabet);
+                        packedMap.put(key, probs);
+                    }
+                } else {
+                    String window = new String(history, maxOrder - order, order);
+                    probs = contextMap.get(window);
+                    if (probs == null) {
+                        probs = new CharDistribution(alphabet);
+                        contextMap.put(window, probs);
+                    }
+                }
+                update(probs, c);
+            }
+            System.arraycopy(history, 1, history, 0, maxOrder - 1);
+            history[maxOrder - 1] = c;
+            historyKey = (historyKey << Alphabet.BITS) | code;
+            if (filled < maxOrder) {
+                filled++;
+            }
+        }
+    }
+
+    // Adds the given character to the given distribution.
+    private void update(Distribution probs, char c) {
+        if (!probs.isQueued()) {
+            probs.setQueued(true);
+            changedLists.add(probs);
+        }
+        probs.update(c);
+    }
+
+    // Returns the mask of the codes of the last order characters of a packed window.
+    private static long mask(int order) {
+        int bits = order * Alphabet.BITS;
+        return bits == 64 ? -1L : (1L << bits) - 1;
+    }
+
+    // Moves all the packed windows to contextMap, and switches this model to String keys.
+    private void unpackKeys() {
+        for (int i = 0; i < packedMap.getSize(); i++) {
+            long key = packedMap.keyAt(i);
+            // The length of a packed window is the number of its non-zero codes
+            int order = (64 - Long.numberOfLeadingZeros(key) + Alphabet.BITS - 1) / Alphabet.BITS;
+            char[] window = new char[order];
+            for (int j = order - 1; j >= 0; j--) {
+                window[j] = alphabet.charOf((int) (key & Alphabet.CAPACITY));
+                key >>>= Alphabet.BITS;
+            }
+            contextMap.put(new String(window), packedMap.valueAt(i));
+        }
+        packedMap = null;
+    }
+
+    /** Computes the probabilities of all the distributions whose counts changed since their
+     *  probabilities were computed. Like LanguageModel.finalizeAll, this is otherwise done
+     *  when a distribution is first sampled. */
+    public void finalizeAll() {
+        for (int i = 0; i < changedLists.size(); i++) {
+            Distribution probs = changedLists.get(i);
+            if (probs.isDirty()) {
+                calculateProbabilities(probs);
+            }
+            probs.setQueued(false);
+        }
+        changedLists.clear();
+    }
+
+    // Computes the probabilities of the given distribution, and gives it a cumulative table,
+    // which picks the same characters as a walk, in logarithmic time (the short windows
+    // have long distributions).
+    private static void calculateProbabilities(Distribution probs) {
+        probs.calculateProbabilities();
+        probs.setSampler(new CumulativeTable(probs));
+    }
+
+    /** Generates a random text, starting with the last maxOrder characters of the given text
+     *  (or all of them, if it is shorter), and adding textLength characters to them. Each
+     *  character is drawn from the distribution of the longest window before it that the
+     *  model has seen. Returns the initial characters only if the model was not trained. */
+    public String generate(String initialText, int textLength) {
+        return generate(initialText, textLength, randomGenerator);
+    }
+
+    /** Generates a random text like generate(String, int), using the given random number
+     *  generator instead of the generator of this model. */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        int start = Math.min(initialText.length(), maxOrder);
+        char[] text = LanguageModel.newText(start, textLength);
+        int end = start + Math.max(textLength, 0);
+        initialText.getChars(initialText.length() - start, initialText.length(), text, 0);
+        if (unigram.getSize() == 0) {
+            return new String(text, 0, start);
+        }
+        // The packed form of the last characters of the text, and the number of these
+        // characters that are in the alphabet (the longest window that can be packed)
+        long key = 0;
+        int known = 0;
+        if (packedMap != null) {
+            for (int i = 0; i < start; i++) {
+                int code = alphabet.codeOf(text[i]);
+                key = (key << Alphabet.BITS) | code;
+                known = (code == 0) ? 0 : known + 1;
+            }
+        }
+        for (int i = start; i < end; i++) {
+            if (i == text.length) {
+                text = LanguageModel.grow(text, end);
+            }
+            Distribution probs = null;
+            int order = Math.min(i, maxOrder);
+            if (packedMap != null) {
+                for (order = Math.min(order, known); order > 0 && probs == null; order--) {
+                    probs = packedMap.get(key & mask(order));
+                }
+            } else {
+                for (; order > 0 && probs == null; order--) {
+                    probs = contextMap.get(new String(text, i - order, order));
+                }
+            }
+            if (probs == null) {
+                probs = unigram;
+            }
+            if (probs.isDirty()) {
+                calculateProbabilities(probs);
+            }
+            char c = probs.getSampler().sample(random.nextDouble());
+            text[i] = c;
+            if (packedMap != null) {
+                int code = alphabet.codeOf(c);
+                key = (key << Alphabet.BITS) | code;
+                known = Math.min(known + 1, maxOrder);
+            }
+        }
+        return new String(text, 0, end);
+    }
+}
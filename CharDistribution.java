@@ -0,0 +1,292 @@
+import java.util.Arrays;
+
+/** A distribution of characters stored in arrays of primitive values.
+ *  A List spends a Node and a CharData object on every character; a char distribution
+ *  packs each character and its count into one long, and keeps the cumulative
+ *  probabilities in a double array that is allocated only once they are computed.
+ *  It behaves like a List: update adds new characters to the beginning, and indexOf,
+ *  get, toArray and toString use the same order. The arrays keep the characters in
+ *  reverse order (the beginning of the distribution is the end of the arrays), so
+ *  adding a character does not shift the others.
+ *  The CharData objects returned by get and toArray are copies. Their p field is computed
+ *  from the count and the total count of the last calculateProbabilities call.
+ *  A distribution built with an alphabet switches to a dense form when it has DENSE_FAN_OUT
+ *  characters or more: an int array, indexed by alphabet code, gives the array position of
+ *  each character, so update finds it without scanning the others. The order of the
+ *  characters, and so sampling, is the same in both forms. The distribution only reads the
+ *  alphabet: a character that has no code, or got it after the index was built, is found
+ *  by a scan, and indexed once it has a code. */
+public class CharDistribution implements Distribution {
+
+    // The characters and their counts, in reverse order: (count << 16) | character
+    private long[] entries;
+
+    // The cumulative probabilities of the characters (null until they are computed)
+    private double[] cp;
+
+    // The number of characters in this distribution
+    private int size;
+
+    // The sum of all the counts
+    private int total;
+
+    // The sum of all the counts when the probabilities were computed (0 if they never were)
+    private int probabilityTotal;
+
+    // True if the counts changed since the probabilities were computed
+    private boolean dirty;
+
+    // True if this distribution is in the list of changed distributions of its model
+    private boolean queued;
+
+    // Samples this distribution, or null if it is walked instead
+    private Sampler sampler;
+
+    // The alphabet that codes the characters for the index, or null if this distribution
+    // stays sparse
+    private final Alphabet alphabet;
+
+    // When this distribution is dense, maps the code of each character to its array position
+    // + 1 (0 if the character is not indexed yet). Null while this distribution is sparse.
+    private int[] index;
+
+    // Adds 1 to the count of an entry
+    private static final long ONE = 1L << 16;
+
+    /** The number of characters from which a distribution that has an alphabet is dense.
+     *  It goes back to the sparse form when removals leave it with less than half as many. */
+    public static final int DENSE_FAN_OUT = 16;
+
+    /** Constructs an empty distribution, which always scans its characters. */
+    public CharDistribution() {
+        this(null);
+    }
+
+    /** Constructs an empty distribution that becomes dense, with an index over the codes of
+     *  the given alphabet, once it has DENSE_FAN_OUT characters. The alphabet may still grow,
+     *  but must not change while the distribution is being updated. */
+    public CharDistribution(Alphabet alphabet) {
+        this.alphabet = alphabet;
+        entries = new long[1];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int indexOf(char chr) {
+        int slot = slotOf(chr);
+        return (slot == -1) ? -1 : size - 1 - slot;
+    }
+
+    public CharData get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("not a valid index");
+        }
+        return dataAt(size - 1 - index);
+    }
+
+    public CharData[] toArray() {
+        CharData[] arr = new CharData[size];
+        for (int i = 0; i < size; i++) {
+            arr[i] = dataAt(size - 1 - i);
+        }
+        return arr;
+    }
+
+    public void update(char chr) {
+        int slot = slotOf(chr);
+        if (slot == -1) {
+            add(chr, 1);
+        } else {
+            entries[slot] += ONE;
+            total++;
+            dirty = true;
+        }
+    }
+
+    public void merge(Distribution other) {
+        CharData[] arr = other.toArray();
+        for (int i = arr.length - 1; i >= 0; i--) {
+            int slot = slotOf(arr[i].chr);
+            if (slot == -1) {
+                add(arr[i].chr, arr[i].count);
+            } else {
+                entries[slot] += arr[i].count * ONE;
+                total += arr[i].count;
+                dirty = true;
+            }
+        }
+    }
+
+    public boolean remove(char chr) {
+        int slot = slotOf(chr);
+        if (slot == -1) {
+            return false;
+        }
+        total -= countAt(slot);
+        System.arraycopy(entries, slot + 1, entries, slot, size - 1 - slot);
+        size--;
+        dirty = true;
+        if (index != null) {
+            // The characters after the removed one moved
+            index = null;
+            if (size >= DENSE_FAN_OUT / 2) {
+                buildIndex();
+            }
+        }
+        return true;
+    }
+
+    /** Returns true if this distribution is in its dense form (see DENSE_FAN_OUT). */
+    public boolean isDense() {
+        return index != null;
+    }
+
+    /** Returns an estimate of the number of bytes this distribution uses: 48 for the object,
+     *  the entries and cumulative probabilities arrays (8 bytes per element), and the index
+     *  (4 bytes per code) when it is dense. */
+    public long memoryBytes() {
+        return 48 + 16 + 8L * entries.length + (cp == null ? 0 : 16 + 8L * cp.length)
+            + (index == null ? 0 : 16 + 4L * index.length);
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public boolean isQueued() {
+        return queued;
+    }
+
+    public void setQueued(boolean queued) {
+        this.queued = queued;
+    }
+
+    public void calculateProbabilities() {
+        if (cp == null || cp.length < size) {
+            cp = new double[entries.length];
+        }
+        // Same arithmetic, in the same order, as for a List
+        double cumulativeProbability = 0.0;
+        for (int slot = size - 1; slot >= 0; slot--) {
+            cumulativeProbability += (double) countAt(slot) / total;
+            cp[slot] = cumulativeProbability;
+        }
+        probabilityTotal = total;
+        dirty = false;
+    }
+
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
+    }
+
+    public char sample(double random) {
+        return (char) walk(random);
+    }
+
+    public int walk(double random) {
+        for (int slot = size - 1; slot >= 0 && cp != null; slot--) {
+            if (random < cp[slot]) {
+                return ((size - 1 - slot) << 16) | (char) entries[slot];
+            }
+        }
+        throw new IllegalStateException("Unable to determine a random character");
+    }
+
+    /** Textual representation of this distribution, in the same format as a List. */
+    public String toString() {
+        StringBuilder str = new StringBuilder("(");
+        for (int slot = size - 1; slot >= 0; slot--) {
+            str.append(dataAt(slot));
+            if (slot > 0) {
+                str.append(" ");
+            }
+        }
+        return str.append(")").toString();
+    }
+
+    // Returns the array position of the given character, or -1 if it is not here.
+    private int slotOf(char chr) {
+        if (index == null) {
+            return scan(chr);
+        }
+        int code = alphabet.codeOf(chr);
+        if (code != 0 && code < index.length && index[code] != 0) {
+            return index[code] - 1;
+        }
+        int slot = scan(chr);
+        if (slot != -1 && code != 0) {
+            indexSlot(code, slot);
+        }
+        return slot;
+    }
+
+    // Returns the array position of the given character, looking at all the characters,
+    // or -1 if it is not here.
+    private int scan(char chr) {
+        for (int slot = size - 1; slot >= 0; slot--) {
+            if ((char) entries[slot] == chr) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /** Adds the given character, with the given count, to the beginning of this distribution.
+     *  The character must not be in this distribution yet. */
+    void add(char chr, int count) {
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size + (size >> 1) + 1);
+        }
+        entries[size] = count * ONE | chr;
+        size++;
+        total += count;
+        dirty = true;
+        if (index != null) {
+            int code = alphabet.codeOf(chr);
+            if (code != 0) {
+                indexSlot(code, size - 1);
+            }
+        } else if (alphabet != null && size >= DENSE_FAN_OUT) {
+            buildIndex();
+        }
+    }
+
+    // Switches this distribution to the dense form: indexes all its characters that have a code.
+    private void buildIndex() {
+        index = new int[alphabet.getSize() + 1];
+        for (int slot = 0; slot < size; slot++) {
+            int code = alphabet.codeOf((char) entries[slot]);
+            if (code != 0) {
+                indexSlot(code, slot);
+            }
+        }
+    }
+
+    // Records that the character with the given code is at the given array position.
+    private void indexSlot(int code, int slot) {
+        if (code >= index.length) {
+            index = Arrays.copyOf(index, Alphabet.CAPACITY + 1);
+        }
+        index[code] = slot + 1;
+    }
+
+    // Returns a CharData copy of the character at the given array position.
+    private CharData dataAt(int slot) {
+        CharData data = new CharData((char) entries[slot]);
+        data.count = countAt(slot);
+        data.p = (probabilityTotal == 0) ? 0 : (double) data.count / probabilityTotal;
+        data.cp = (cp == null || slot >= cp.length) ? 0 : cp[slot];
+        return data;
+    }
+
+    // Returns the count of the character at the given array position.
+    private int countAt(int slot) {
+        return (int) (entries[slot] >>> 16);
+    }
+}
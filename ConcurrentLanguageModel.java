@@ -0,0 +1,192 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Counts the windows of documents that several threads train at the same time.
+ *  LanguageModel is not thread-safe: its lists are updated in place. A concurrent model
+ *  keeps its windows in a ConcurrentHashMap, and the characters that follow each window in
+ *  a lock-free hash table of counts: a character and its count are packed into one long,
+ *  which is claimed and incremented by compare-and-set, so threads that update the same
+ *  window never wait for each other. The tables never move their entries (a full table
+ *  links to a larger one), so an increment is never lost.
+ *  Each call to trainText is a document, as in LanguageModel.trainText, so the counts are
+ *  the same as those of a LanguageModel trained on the same documents, whatever the order
+ *  of the calls and however they interleave. addTo copies the counts into a LanguageModel,
+ *  which can then generate texts. */
+public class ConcurrentLanguageModel {
+
+    // The window length of this model
+    private final int windowLength;
+
+    // Maps each window to the counts of the characters that follow it
+    private final ConcurrentHashMap<String, Counts> windows;
+
+    /** Constructs an empty model with the given window length. */
+    public ConcurrentLanguageModel(int windowLength) {
+        if (windowLength < 0) {
+            throw new IllegalArgumentException("window length must not be negative");
+        }
+        this.windowLength = windowLength;
+        windows = new ConcurrentHashMap<String, Counts>();
+    }
+
+    /** Returns the window length of this model. */
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    /** Adds the given text (a document) to the corpus of this model: the windows of the
+     *  document start at its beginning. Can be called by several threads at the same time. */
+    public void trainText(CharSequence text) {
+        char[] chars = new char[text.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = text.charAt(i);
+        }
+        for (int i = windowLength; i < chars.length; i++) {
+            String window = new String(chars, i - windowLength, windowLength);
+            Counts counts = windows.get(window);
+            if (counts == null) {
+                counts = windows.computeIfAbsent(window, key -> new Counts());
+            }
+            counts.add(chars[i]);
+        }
+    }
+
+    /** Returns the number of windows of this model. */
+    public int getContextCount() {
+        return windows.size();
+    }
+
+    /** Returns the number of times the given character followed the given window. */
+    public int getCount(String window, char chr) {
+        Counts counts = windows.get(window);
+        return (counts == null) ? 0 : counts.get(chr);
+    }
+
+    /** Adds the counts of this model to the given model, which must have the same window
+     *  length, as LanguageModel.merge does. The windows, and the characters of each window,
+     *  are added in sorted order, so the given model is the same however the documents of
+     *  this model interleaved (but its seeded texts differ from those of a model trained in
+     *  order, whose lists are in order of first appearance). Counts added while this method
+     *  runs may or may not be copied. */
+    public void addTo(LanguageModel model) {
+        if (model.windowLength != windowLength) {
+            throw new IllegalArgumentException("The window lengths of the models are different");
+        }
+        String[] sorted = windows.keySet().toArray(new String[0]);
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            model.mergeCounts(sorted[i], windows.get(sorted[i]).toDistribution());
+        }
+    }
+
+    // The counts of the characters that follow a window: an open addressing table of
+    // (count << 16) | character entries (0 = an empty slot), with linear probing. Entries are
+    // claimed and incremented by compare-and-set, and never move. When a table is full, the
+    // characters that are not in it go to the next table, twice as large.
+    private static final class Counts {
+
+        // Adds 1 to the count of an entry
+        private static final long ONE = 1L << 16;
+
+        // The entries of this table
+        private final AtomicLongArray entries;
+
+        // Used to map a character to its first slot: slot = hash >>> shift
+        private final int shift;
+
+        // The next table, or null until this one is full
+        private final AtomicReference<Counts> next = new AtomicReference<Counts>();
+
+        Counts() {
+            this(2);
+        }
+
+        private Counts(int bits) {
+            entries = new AtomicLongArray(1 << bits);
+            shift = 32 - bits;
+        }
+
+        // Adds 1 to the count of the given character.
+        void add(char chr) {
+            Counts table = this;
+            while (true) {
+                int mask = table.entries.length() - 1;
+                int slot = table.slotOf(chr);
+                for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+                    long entry = table.entries.get(slot);
+                    if (entry == 0) {
+                        if (table.entries.compareAndSet(slot, 0, ONE | chr)) {
+                            return;
+                        }
+                        // Another thread took the slot: maybe for the same character
+                        entry = table.entries.get(slot);
+                    }
+                    if ((char) entry == chr) {
+                        table.entries.getAndAdd(slot, ONE);
+                        return;
+                    }
+                }
+                table = table.nextTable();
+            }
+        }
+
+        // Returns the count of the given character.
+        int get(char chr) {
+            for (Counts table = this; table != null; table = table.next.get()) {
+                int mask = table.entries.length() - 1;
+                int slot = table.slotOf(chr);
+                for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+                    long entry = table.entries.get(slot);
+                    if (entry == 0) {
+                        return 0;
+                    }
+                    if ((char) entry == chr) {
+                        return (int) (entry >>> 16);
+                    }
+                }
+            }
+            return 0;
+        }
+
+        // Returns the counts of all the tables, in a distribution whose characters are sorted.
+        Distribution toDistribution() {
+            long[] sorted = new long[0];
+            int size = 0;
+            for (Counts table = this; table != null; table = table.next.get()) {
+                sorted = Arrays.copyOf(sorted, size + table.entries.length());
+                for (int slot = 0; slot < table.entries.length(); slot++) {
+                    long entry = table.entries.get(slot);
+                    if (entry != 0) {
+                        // Sorts by character
+                        sorted[size++] = ((long) (char) entry << 32) | (entry >>> 16);
+                    }
+                }
+            }
+            Arrays.sort(sorted, 0, size);
+            CharDistribution distribution = new CharDistribution();
+            // add puts a character at the beginning, so the last one goes first
+            for (int i = size - 1; i >= 0; i--) {
+                distribution.add((char) (sorted[i] >>> 32), (int) sorted[i]);
+            }
+            return distribution;
+        }
+
+        // Returns the first slot of the given character in this table.
+        private int slotOf(char chr) {
+            return (chr * 0x9E3779B9) >>> shift;
+        }
+
+        // Returns the next table, creating it if no other thread did.
+        private Counts nextTable() {
+            Counts table = next.get();
+            if (table == null) {
+                int bits = Integer.numberOfTrailingZeros(entries.length()) + 1;
+                next.compareAndSet(null, new Counts(bits));
+                table = next.get();
+            }
+            return table;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.Arrays;
+
+/** A hash table that maps packed windows (long values) to distributions of characters.
+ *  Uses open addressing with linear probing, so there are no entry objects and no boxed keys:
+ *  the slots hold the keys, and the index of each key's distribution in a pool.
+ *  The pool keeps the distributions (and their keys) in the order they were added, and
+ *  entries are numbered by their position in the pool: 0 .. getSize() - 1.
+ *  The key 0 marks an empty slot; packed windows are never 0 since alphabet codes start at 1. */
+public class ContextTable {
+
+    // The default largest fraction of the slots that may be in use
+    public static final float DEFAULT_LOAD_FACTOR = 0.5f;
+
+    // The keys of the slots (0 = empty slot)
+    private long[] keys;
+
+    // The pool index of the distribution of each slot's key
+    private int[] indexes;
+
+    // The distributions of this table, in the order they were added
+    private Distribution[] pool;
+
+    // The key of each distribution in the pool
+    private long[] poolKeys;
+
+    // The number of entries in this table
+    private int size;
+
+    // The largest fraction of the slots that may be in use
+    private final float loadFactor;
+
+    // Used to map a hash code to a slot: slot = hash >>> shift
+    private int shift;
+
+    /** Constructs an empty table. */
+    public ContextTable() {
+        this(16, DEFAULT_LOAD_FACTOR);
+    }
+
+    /** Constructs an empty table with room for the given number of entries.
+     *  The table grows when more than loadFactor of its slots are in use: a lower
+     *  load factor means shorter probes, and more memory. */
+    public ContextTable(int capacity, float loadFactor) {
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("load factor must be between 0 and 1");
+        }
+        this.loadFactor = loadFactor;
+        int slots = Integer.highestOneBit(Math.max((int) Math.ceil(capacity / loadFactor), 2) - 1) << 1;
+        keys = new long[slots];
+        indexes = new int[slots];
+        shift = 64 - Integer.numberOfTrailingZeros(slots);
+        pool = new Distribution[Math.max(capacity, 1)];
+        poolKeys = new long[pool.length];
+        size = 0;
+    }
+
+    /** Returns the number of entries in this table. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the load factor of this table. */
+    public float getLoadFactor() {
+        return loadFactor;
+    }
+
+    /** Returns the number of slots in this table. */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /** Returns the key of the entry at the given pool index. */
+    public long keyAt(int index) {
+        return poolKeys[index];
+    }
+
+    /** Returns the distribution of the entry at the given pool index. */
+    public Distribution valueAt(int index) {
+        return pool[index];
+    }
+
+    /** Returns the distribution mapped to the given key, or null if there is no such key. */
+    public Distribution get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key); keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return pool[indexes[slot]];
+            }
+        }
+        return null;
+    }
+
+    /** Maps the given key to the given distribution, replacing the previous one, if any. */
+    public void put(long key, Distribution value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("0 is not a valid packed window");
+        }
+        int mask = keys.length - 1;
+        int slot = slotOf(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                pool[indexes[slot]] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == pool.length) {
+            pool = Arrays.copyOf(pool, 2 * size);
+            poolKeys = Arrays.copyOf(poolKeys, 2 * size);
+        }
+        pool[size] = value;
+        poolKeys[size] = key;
+        keys[slot] = key;
+        indexes[slot] = size;
+        size++;
+        if (size > loadFactor * keys.length) {
+            resize(2 * keys.length);
+        }
+    }
+
+    /** Returns an estimate of the number of bytes this table uses, not counting the
+     *  distributions themselves: 24 for the object, 16 for the header of each of its 4 arrays,
+     *  12 per slot (key and index), and 12 per pool entry (key and reference), assuming
+     *  compressed references. */
+    public long memoryBytes() {
+        return 24 + 4 * 16 + 12L * keys.length + 12L * pool.length;
+    }
+
+    // Returns the first slot to probe for the given key (Fibonacci hashing).
+    private int slotOf(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    // Moves all the keys of this table into new slot arrays of the given length.
+    private void resize(int slots) {
+        keys = new long[slots];
+        indexes = new int[slots];
+        shift = 64 - Integer.numberOfTrailingZeros(slots);
+        int mask = slots - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = slotOf(poolKeys[i]);
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = poolKeys[i];
+            indexes[slot] = i;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.Arrays;
+
+/** A trie that maps windows (all of the same length) to distributions of characters.
+ *  Windows that start with the same characters share the nodes of their common prefix,
+ *  so a window costs a few nodes instead of a String and a hash map entry.
+ *  The nodes are packed into parallel arrays (no node objects): each node has a label
+ *  (its character), its first child, and its next sibling. The children of a node are
+ *  kept in the order they were added, so the most common characters, which usually
+ *  appear first, are found first. The nodes at depth windowLength are leaves, and the
+ *  first child of a leaf is the index of its distribution in a pool.
+ *  Like ContextTable, the pool keeps the distributions in the order they were added,
+ *  and entries are numbered by their position in the pool: 0 .. getSize() - 1. */
+public class ContextTrie {
+
+    // No node, or no distribution
+    private static final int NONE = -1;
+
+    // The length of the windows of this trie
+    private final int windowLength;
+
+    // The character of each node (the root, node 0, has none)
+    private char[] labels;
+
+    // The first child of each node, or, for a leaf, the pool index of its distribution
+    private int[] firstChild;
+
+    // The next sibling of each node
+    private int[] nextSibling;
+
+    // The number of nodes in this trie
+    private int nodes;
+
+    // The distributions of this trie, in the order they were added
+    private Distribution[] pool;
+
+    // The number of entries (windows) in this trie
+    private int size;
+
+    /** Constructs an empty trie for windows of the given length. */
+    public ContextTrie(int windowLength) {
+        if (windowLength < 0) {
+            throw new IllegalArgumentException("window length must not be negative");
+        }
+        this.windowLength = windowLength;
+        labels = new char[16];
+        firstChild = new int[16];
+        nextSibling = new int[16];
+        firstChild[0] = NONE;
+        nextSibling[0] = NONE;
+        nodes = 1;
+        pool = new Distribution[16];
+        size = 0;
+    }
+
+    /** Returns the number of entries in this trie. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the number of nodes in this trie, including the root. */
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    /** Returns the distribution of the entry at the given pool index. */
+    public Distribution valueAt(int index) {
+        return pool[index];
+    }
+
+    /** Returns the distribution mapped to the given window, or null if there is no such window. */
+    public Distribution get(CharSequence window) {
+        checkLength(window.length());
+        int node = 0;
+        for (int i = 0; i < windowLength && node != NONE; i++) {
+            node = childOf(node, window.charAt(i));
+        }
+        return (node == NONE) ? null : valueOf(node);
+    }
+
+    /** Returns the distribution mapped to the window text[from] .. text[from + windowLength - 1],
+     *  or null if there is no such window. */
+    public Distribution get(char[] text, int from) {
+        int node = 0;
+        for (int i = from; i < from + windowLength && node != NONE; i++) {
+            node = childOf(node, text[i]);
+        }
+        return (node == NONE) ? null : valueOf(node);
+    }
+
+    /** Maps the given window to the given distribution, replacing the previous one, if any. */
+    public void put(CharSequence window, Distribution value) {
+        checkLength(window.length());
+        int node = 0;
+        for (int i = 0; i < windowLength; i++) {
+            char c = window.charAt(i);
+            int child = firstChild[node];
+            int last = NONE;
+            while (child != NONE && labels[child] != c) {
+                last = child;
+                child = nextSibling[child];
+            }
+            if (child == NONE) {
+                child = newNode(c);
+                if (last == NONE) {
+                    firstChild[node] = child;
+                } else {
+                    nextSibling[last] = child;
+                }
+            }
+            node = child;
+        }
+        if (firstChild[node] != NONE) {
+            pool[firstChild[node]] = value;
+            return;
+        }
+        if (size == pool.length) {
+            pool = Arrays.copyOf(pool, 2 * size);
+        }
+        pool[size] = value;
+        firstChild[node] = size;
+        size++;
+    }
+
+    /** Returns the windows of this trie, in pool order (the window of entry i is at index i). */
+    public String[] windows() {
+        String[] windows = new String[size];
+        collect(0, 0, new char[windowLength], windows);
+        return windows;
+    }
+
+    /** Returns an estimate of the number of bytes this trie uses, not counting the
+     *  distributions themselves: 10 bytes per node (label, first child and next sibling),
+     *  4 per pool entry, and the object and array headers, assuming compressed references. */
+    public long memoryBytes() {
+        return 24 + 4 * 16 + 10L * labels.length + 4L * pool.length;
+    }
+
+    // Adds the windows below the given node, at the given depth, to the given array.
+    // The window array holds the labels of the path to the node.
+    private void collect(int node, int depth, char[] window, String[] windows) {
+        if (depth == windowLength) {
+            if (firstChild[node] != NONE) {
+                windows[firstChild[node]] = new String(window);
+            }
+            return;
+        }
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            window[depth] = labels[child];
+            collect(child, depth + 1, window, windows);
+        }
+    }
+
+    // Returns the child of the given node that has the given label, or NONE.
+    private int childOf(int node, char c) {
+        int child = firstChild[node];
+        while (child != NONE && labels[child] != c) {
+            child = nextSibling[child];
+        }
+        return child;
+    }
+
+    // Returns the distribution of the given leaf, or null if it has none.
+    private Distribution valueOf(int leaf) {
+        int index = firstChild[leaf];
+        return (index == NONE) ? null : pool[index];
+    }
+
+    // Adds a node with the given label, and no children or siblings, and returns it.
+    private int newNode(char c) {
+        if (nodes == labels.length) {
+            labels = Arrays.copyOf(labels, 2 * nodes);
+            firstChild = Arrays.copyOf(firstChild, 2 * nodes);
+            nextSibling = Arrays.copyOf(nextSibling, 2 * nodes);
+        }
+        labels[nodes] = c;
+        firstChild[nodes] = NONE;
+        nextSibling[nodes] = NONE;
+        return nodes++;
+    }
+
+    private void checkLength(int length) {
+        if (length != windowLength) {
+            throw new IllegalArgumentException("window length must be " + windowLength);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/** Reads the characters of a UTF-8 text file in large blocks.
+ *  In reads one character at a time through a Scanner, which is convenient but slow
+ *  for training on big corpora. A corpus reader decodes the file straight from a
+ *  FileChannel into a reusable CharBuffer, and hands the characters out chunk by chunk.
+ *  Malformed input is decoded the same way In decodes it (as replacement characters). */
+public class CorpusReader {
+
+    // The default number of characters in a chunk
+    public static final int CHUNK_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final CharsetDecoder decoder;
+
+    // Bytes read from the file and not decoded yet
+    private final ByteBuffer bytes;
+
+    // The chunk of characters handed out by read()
+    private final CharBuffer chars;
+
+    // True once the whole file was read into bytes
+    private boolean endOfFile;
+
+    // True once the whole file was decoded
+    private boolean done;
+
+    /** Opens the given file, for reading chunks of CHUNK_SIZE characters. */
+    public CorpusReader(String fileName) {
+        this(fileName, CHUNK_SIZE);
+    }
+
+    /** Opens the given file, for reading chunks of at most chunkSize characters. A chunk must
+     *  have room for at least 2 characters: the decoder never splits a surrogate pair. */
+    public CorpusReader(String fileName, int chunkSize) {
+        if (fileName == null) throw new IllegalArgumentException("argument is null");
+        if (chunkSize < 2) throw new IllegalArgumentException("chunk size must be at least 2");
+        try {
+            channel = FileChannel.open(Paths.get(fileName));
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException("Could not open " + fileName, ioe);
+        }
+        decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes = ByteBuffer.allocate(Math.max(chunkSize, 16));
+        chars = CharBuffer.allocate(chunkSize);
+    }
+
+    /** Returns the next chunk of characters of the file, or null if there are no more.
+     *  The chunk is backed by an array (chunk.array()), and is overwritten by the next call. */
+    public CharBuffer read() {
+        chars.clear();
+        while (chars.position() == 0 && !done) {
+            if (!endOfFile) {
+                try {
+                    endOfFile = channel.read(bytes) < 0;
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+            bytes.flip();
+            boolean underflow = decoder.decode(bytes, chars, endOfFile).isUnderflow();
+            bytes.compact();
+            if (endOfFile && underflow) {
+                decoder.flush(chars);
+                done = true;
+            }
+        }
+        if (chars.position() == 0) {
+            return null;
+        }
+        chars.flip();
+        return chars;
+    }
+
+    /** Hands the characters of the file that were not read yet to the given handler, chunk by
+     *  chunk, except the trailing whitespace of the file (like In.isEmpty(), which stops at
+     *  it). Whitespace at the end of a chunk is held back, and handed out before the next
+     *  chunk only if more text follows it. */
+    public void readTrimmed(ChunkHandler handler) {
+        StringBuilder whitespace = new StringBuilder();
+        CharBuffer chunk = read();
+        while (chunk != null) {
+            char[] array = chunk.array();
+            int from = chunk.arrayOffset() + chunk.position();
+            int to = chunk.arrayOffset() + chunk.limit();
+            int end = to;
+            while (end > from && Character.isWhitespace(array[end - 1])) {
+                end--;
+            }
+            if (end > from && whitespace.length() > 0) {
+                handler.handle(whitespace.toString().toCharArray(), 0, whitespace.length());
+                whitespace.setLength(0);
+            }
+            handler.handle(array, from, end);
+            whitespace.append(array, end, to - end);
+            chunk = read();
+        }
+    }
+
+    /** Returns all the characters of the file that were not read yet, in one array. */
+    public char[] readAll() {
+        char[] all = new char[chars.capacity()];
+        int size = 0;
+        CharBuffer chunk = read();
+        while (chunk != null) {
+            int length = chunk.remaining();
+            if (size + length > all.length) {
+                all = Arrays.copyOf(all, Math.max(2 * all.length, size + length));
+            }
+            chunk.get(all, size, length);
+            size += length;
+            chunk = read();
+        }
+        return Arrays.copyOf(all, size);
+    }
+
+    /** Closes the file. */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /** Receives the chunks of characters handed out by readTrimmed. */
+    public interface ChunkHandler {
+
+        /** Handles the characters chars[from] .. chars[to - 1]. The array may be overwritten
+         *  once this method returns. */
+        void handle(char[] chars, int from, int to);
+    }
+}
@@ -0,0 +1,115 @@
+/** A count-min sketch: approximate counts of long items in a fixed amount of memory.
+ *  The sketch has depth rows of width counters. An item adds to one counter in each row,
+ *  chosen by a hash function of the row, and its estimate is the smallest of these counters.
+ *  Since other items may add to the same counters, an estimate is never lower than the true
+ *  count, and with probability at least 1 - e^-depth, it is at most e * total / width higher
+ *  (total being the sum of all the counts). Counters are updated conservatively: an add only
+ *  raises the counters that are below the new estimate, which keeps the error lower. */
+public class CountMinSketch {
+
+    // The number of bytes of a sketch besides its counters: the object, and the header of
+    // the array of counters
+    static final int FIXED_BYTES = 40 + 16;
+
+    // The counters, row after row
+    private final int[] counters;
+
+    // The number of counters in a row (a power of 2)
+    private final int width;
+
+    // The number of rows
+    private final int depth;
+
+    // Used to map a hash code to a counter of a row: counter = hash >>> shift
+    private final int shift;
+
+    // The sum of all the counts added to this sketch
+    private long total;
+
+    /** Constructs a sketch with the given number of rows, and at least the given number
+     *  of counters per row (rounded up to a power of 2). */
+    public CountMinSketch(int width, int depth) {
+        if (width < 1 || width > (1 << 30) || depth < 1) {
+            throw new IllegalArgumentException("width must be between 1 and 2^30, and depth positive");
+        }
+        this.width = Integer.highestOneBit(Math.max(width, 2) - 1) << 1;
+        this.depth = depth;
+        if ((long) this.width * depth > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("sketch is too large");
+        }
+        counters = new int[this.width * depth];
+        shift = 64 - Integer.numberOfTrailingZeros(this.width);
+    }
+
+    /** Returns the number of counters in a row. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Returns the number of rows. */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Returns the sum of all the counts added to this sketch. */
+    public long getTotal() {
+        return total;
+    }
+
+    /** Adds the given count to the given item, and returns the new estimate of its count. */
+    public int add(long item, int count) {
+        long h1 = mix(item);
+        long h2 = mix(h1) | 1;
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[counterOf(row, h1, h2)]);
+        }
+        int updated = (int) Math.min((long) estimate + count, Integer.MAX_VALUE);
+        for (int row = 0; row < depth; row++) {
+            int counter = counterOf(row, h1, h2);
+            if (counters[counter] < updated) {
+                counters[counter] = updated;
+            }
+        }
+        total += count;
+        return updated;
+    }
+
+    /** Returns the estimate of the count of the given item. */
+    public int estimate(long item) {
+        long h1 = mix(item);
+        long h2 = mix(h1) | 1;
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[counterOf(row, h1, h2)]);
+        }
+        return estimate;
+    }
+
+    /** Returns the bound on the error of an estimate (e * total / width), which holds with
+     *  probability at least 1 - e^-depth. */
+    public double errorBound() {
+        return Math.E * total / width;
+    }
+
+    /** Returns the number of bytes this sketch uses. */
+    public long memoryBytes() {
+        return FIXED_BYTES + 4L * counters.length;
+    }
+
+    // Returns the counter of the given row for an item with the given hash codes. The hash
+    // function of row i is h1 + i * h2 (double hashing).
+    private int counterOf(int row, long h1, long h2) {
+        return row * width + (int) ((h1 + row * h2) >>> shift);
+    }
+
+    // Scrambles the bits of the given value (the finalizer of MurmurHash3).
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
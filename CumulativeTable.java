@@ -0,0 +1,48 @@
+/** Samples the characters of a list by binary search over their cumulative probabilities.
+ *  The table keeps the characters in list order, with the same cp values as the list,
+ *  so every random number selects the same character as a walk over the list does:
+ *  the seeded texts that a model generates do not change. */
+public class CumulativeTable implements Sampler {
+
+    // The characters of the list, in list order
+    private final char[] symbols;
+
+    // The cumulative probabilities of the characters (the cp fields of the list)
+    private final double[] cp;
+
+    /** Constructs a table for the characters of the given distribution, whose probabilities
+     *  were already computed. */
+    public CumulativeTable(Distribution probs) {
+        CharData[] arr = probs.toArray();
+        symbols = new char[arr.length];
+        cp = new double[arr.length];
+        for (int i = 0; i < arr.length; i++) {
+            symbols[i] = arr[i].chr;
+            cp[i] = arr[i].cp;
+        }
+    }
+
+    /** Returns the number of characters in this table. */
+    public int getSize() {
+        return symbols.length;
+    }
+
+    /** Returns the first character whose cumulative probability is greater than the given
+     *  random number, like a walk over the list. */
+    public char sample(double random) {
+        int low = 0;
+        int high = cp.length - 1;
+        if (!(random < cp[high])) {
+            throw new IllegalStateException("Unable to determine a random character");
+        }
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (random < cp[middle]) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return symbols[low];
+    }
+}
@@ -0,0 +1,62 @@
+/** The distribution of the characters that follow a window in the corpus.
+ *  For each character, a distribution keeps a count, a probability and a cumulative
+ *  probability, in a fixed order: update adds new characters to the beginning.
+ *  A distribution can sample itself, by walking its characters in order and comparing
+ *  their cumulative probabilities with the random number.
+ *  List and CharDistribution are the two implementations. */
+public interface Distribution extends Sampler {
+
+    /** Returns the number of characters in this distribution. */
+    int getSize();
+
+    /** Returns the index of the given character, or -1 if it is not in this distribution. */
+    int indexOf(char chr);
+
+    /** Returns the CharData object at the given index.
+     *  If the index is negative or too large, throws an IndexOutOfBoundsException. */
+    CharData get(int index);
+
+    /** Returns an array of the CharData objects of this distribution, in order. */
+    CharData[] toArray();
+
+    /** Increments the count of the given character, or adds it to the beginning
+     *  of this distribution with a count of 1. */
+    void update(char chr);
+
+    /** Adds the counts of the given distribution to the counts of this distribution.
+     *  Characters that are not in this distribution are added to its beginning,
+     *  keeping the order they have in the given distribution. */
+    void merge(Distribution other);
+
+    /** Removes the given character and its count from this distribution. Returns false if
+     *  the character is not in this distribution. */
+    boolean remove(char chr);
+
+    /** Returns an estimate of the number of bytes this distribution uses, not counting its
+     *  sampler, assuming compressed references. */
+    long memoryBytes();
+
+    /** Returns true if the counts changed since the probabilities were computed. */
+    boolean isDirty();
+
+    /** Returns true if this distribution is in the list of distributions whose probabilities
+     *  its model must compute (see LanguageModel.finalizeAll). */
+    boolean isQueued();
+
+    /** Sets whether this distribution is in the list of its model's changed distributions. */
+    void setQueued(boolean queued);
+
+    /** Computes the probabilities (p and cp) of all the characters from their counts. */
+    void calculateProbabilities();
+
+    /** Walks this distribution like sample does, and returns the character that the given
+     *  random number selects in the low 16 bits, and its index in the high 16 bits, so the
+     *  length of the walk is known without looking the character up again. */
+    int walk(double random);
+
+    /** Returns the sampler built for this distribution, or null if there is none. */
+    Sampler getSampler();
+
+    /** Sets the sampler built for this distribution (null to walk it instead). */
+    void setSampler(Sampler sampler);
+}
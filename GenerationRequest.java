@@ -0,0 +1,44 @@
+/** A request to generate a random text from a language model: the initial text, the number
+ *  of characters to generate, and the seed of the random numbers used for this text only.
+ *  The same request always generates the same text from the same model. */
+public class GenerationRequest {
+
+    // The text whose last windowLength characters start the generated text
+    private final String initialText;
+
+    // The number of characters to generate
+    private final int textLength;
+
+    // The seed of the random numbers of this request
+    private final long seed;
+
+    /** Constructs a request with the given initial text, text length and seed. */
+    public GenerationRequest(String initialText, int textLength, long seed) {
+        if (initialText == null) {
+            throw new IllegalArgumentException("initial text is null");
+        }
+        this.initialText = initialText;
+        this.textLength = textLength;
+        this.seed = seed;
+    }
+
+    /** Returns the initial text of this request. */
+    public String getInitialText() {
+        return initialText;
+    }
+
+    /** Returns the number of characters to generate. */
+    public int getTextLength() {
+        return textLength;
+    }
+
+    /** Returns the seed of the random numbers of this request. */
+    public long getSeed() {
+        return seed;
+    }
+
+    /** Returns a textual representation of this request. */
+    public String toString() {
+        return "(" + initialText + " " + textLength + " " + seed + ")";
+    }
+}
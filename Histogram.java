@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counts non-negative values (latencies, lengths) in buckets, to report their percentiles.
+ *  Values below 16 have a bucket each; larger values share a bucket with the values that
+ *  have the same highest 4 bits, so a percentile is within 12.5% of the exact value, over the
+ *  whole range of longs, in 488 buckets. Values can be recorded by several threads at the
+ *  same time, and read while they are recorded. */
+public class Histogram {
+
+    // The number of values that have a bucket each
+    private static final int LINEAR = 16;
+
+    // The number of buckets for each power of 2 above LINEAR
+    private static final int SUB_BUCKETS = 8;
+
+    // The number of values in each bucket
+    private final AtomicLongArray buckets = new AtomicLongArray(bucketOf(Long.MAX_VALUE) + 1);
+
+    // The number of values, and their sum
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /** Records the given value (negative values are recorded as 0). */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /** Returns the number of values recorded. */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** Returns the mean of the values recorded, or 0 if there are none. */
+    public double getMean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    /** Returns the given percentile (between 0 and 100) of the values recorded: the largest
+     *  value of the bucket that holds it. Returns 0 if there are no values. */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long n = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            n += buckets.get(i);
+        }
+        long rank = Math.max((long) Math.ceil(percentile / 100 * n), 1);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return (i == buckets.length() - 1) ? Long.MAX_VALUE : lowestOf(i + 1) - 1;
+            }
+        }
+        return 0;
+    }
+
+    /** Forgets all the values recorded. Values recorded while it runs may be kept or not. */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+    }
+
+    // Returns the bucket of the given value.
+    private static int bucketOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    // Returns the smallest value of the given bucket.
+    private static long lowestOf(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        long sub = (bucket - LINEAR) % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - 3);
+    }
+}
@@ -1,13 +1,41 @@
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BooleanSupplier;
+import java.util.random.RandomGenerator;
 
 
 public class LanguageModel {
 
     // The map of this model.
-    // Maps windows to lists of charachter data objects.
-    HashMap<String, List> CharDataMap;
+    // Maps windows to distributions of charachter data objects (lists, by default).
+    HashMap<String, Distribution> CharDataMap;
     
     // The window length used in this model.
     int windowLength;
@@ -15,13 +43,81 @@ public class LanguageModel {
     // The random number generator used by this model. 
 	private Random randomGenerator;
 
+    // The longest window that can be packed into a long value.
+    public static final int MAX_PACKED_WINDOW = 64 / Alphabet.BITS;
+
+    // When packed keys are used, maps packed windows to distributions of charachter data objects
+    // (and CharDataMap stays empty). Null when windows are String keys.
+    ContextTable packedMap;
+
+    // When the trie backend is used, maps String windows to distributions of charachter data
+    // objects instead of CharDataMap (which stays empty). Null when CharDataMap is used.
+    ContextTrie contextTrie;
+
+    // The characters seen by this model, used for packing windows.
+    Alphabet alphabet;
+
+    // The window that the next trained character follows. When keys are packed, only
+    // the first windowLength characters are kept here, and trainKey holds the window.
+    private String trainWindow;
+
+    // The packed form of the training window.
+    private long trainKey;
+
+    // The number of characters read into the training window so far (at most windowLength).
+    private int trainFilled;
+
+    // The windows of CharDataMap, in the order they were added. A HashMap built by adding
+    // the windows in this order is the same as CharDataMap, down to the order of its
+    // windows, so save writes the windows in this order.
+    private ArrayList<String> windowOrder = new ArrayList<String>();
+
+    // The distributions whose counts changed since their probabilities were computed.
+    private ArrayList<Distribution> changedLists = new ArrayList<Distribution>();
+
+    // The last snapshot of this model (see snapshot), or null if none was taken.
+    private volatile ModelSnapshot snapshot;
+
+    // The metrics of this model, or null if they are disabled.
+    private ModelMetrics metrics;
+
+    // The windows whose distributions changed since the last snapshot, or null if the next
+    // snapshot must be built from all the windows (no snapshot was taken yet, or windows
+    // or characters were removed since).
+    private ArrayList<String> snapshotChanges;
+
+    // Ways of sampling a list: walking it in order and comparing cumulative
+    // probabilities, using an alias table (constant time per character), or
+    // binary searching an array of the cumulative probabilities.
+    public static final int WALK_SAMPLER = 0;
+    public static final int ALIAS_SAMPLER = 1;
+    public static final int CUMULATIVE_SAMPLER = 2;
+
+    // The way this model samples its lists.
+    private int samplerType = WALK_SAMPLER;
+
+    // True if some distributions whose probabilities are computed have no sampler of the
+    // type of this model (setSamplerType dropped them), until a batch generate builds them
+    private boolean samplersMissing;
+
+    // True if this model stores its distributions in CharDistribution arrays
+    // instead of Lists.
+    private boolean compactDistributions;
+
+    // The way the Lists of this model are ordered as they are updated.
+    private int listOrder = List.INSERTION_ORDER;
+
+    // The thresholds that train and trainParallel prune the model with (1 = no pruning).
+    private int pruneWindowCount = 1;
+    private int pruneCharCount = 1;
+
     /** Constructs a language model with the given window length and a given
      *  seed value. Generating texts from this model multiple times with the 
      *  same seed value will produce the same random texts. Good for debugging. */
     public LanguageModel(int windowLength, int seed) {
         this.windowLength = windowLength;
         randomGenerator = new Random(seed);
-        CharDataMap = new HashMap<String, List>();
+        CharDataMap = new HashMap<String, Distribution>();
     }
 
     /** Constructs a language model with the given window length.
@@ -30,110 +126,1536 @@ public class LanguageModel {
     public LanguageModel(int windowLength) {
         this.windowLength = windowLength;
         randomGenerator = new Random();
-        CharDataMap = new HashMap<String, List>();
+        CharDataMap = new HashMap<String, Distribution>();
+    }
+
+    /** Sets whether this model packs its windows into long keys instead of String keys.
+     *  Packed keys avoid creating a String for every character of the corpus.
+     *  Windows longer than MAX_PACKED_WINDOW do not fit, and keep using String keys.
+     *  Must be called before the model is trained. */
+    public void setPackedKeys(boolean packed) {
+        setPackedKeys(packed, ContextTable.DEFAULT_LOAD_FACTOR);
+    }
+
+    /** Sets whether this model packs its windows into long keys, like setPackedKeys(boolean),
+     *  and the load factor of the table that maps the packed windows (see ContextTable). */
+    public void setPackedKeys(boolean packed, float loadFactor) {
+        if (getContextCount() > 0) {
+            throw new IllegalStateException("The key mode can't be changed after training");
+        }
+        if (packed && windowLength > 0 && windowLength <= MAX_PACKED_WINDOW) {
+            packedMap = new ContextTable(16, loadFactor);
+            alphabet = new Alphabet();
+        } else {
+            packedMap = null;
+        }
+    }
+
+    /** Returns true if this model currently uses packed keys. */
+    public boolean isPackedKeys() {
+        return packedMap != null;
+    }
+
+    /** Sets whether this model stores the distribution of each window in a
+     *  CharDistribution (parallel arrays) instead of a List (linked CharData objects).
+     *  Both give the same model. The CharDistributions index their characters by their
+     *  alphabet codes once they have CharDistribution.DENSE_FAN_OUT of them, so updating the
+     *  windows that many characters follow takes constant time instead of a scan.
+     *  Must be called before the model is trained. */
+    public void setCompactDistributions(boolean compact) {
+        if (getContextCount() > 0) {
+            throw new IllegalStateException("The distribution type can't be changed after training");
+        }
+        compactDistributions = compact;
+        if (compact && alphabet == null) {
+            alphabet = new Alphabet();
+        }
+    }
+
+    /** Returns true if this model stores its distributions in CharDistribution arrays. */
+    public boolean isCompactDistributions() {
+        return compactDistributions;
+    }
+
+    /** Sets whether this model stores its String windows in a ContextTrie instead of
+     *  CharDataMap. Windows that share a prefix share its nodes in the trie, which takes much
+     *  less memory than a String key and a map entry per window. Packed keys, when they are
+     *  used, take precedence: the trie then only gets the windows if the model falls back to
+     *  String keys. toString lists the windows of a trie in the order they were added.
+     *  Must be called before the model is trained. */
+    public void setContextTrie(boolean trie) {
+        if (getContextCount() > 0) {
+            throw new IllegalStateException("The context store can't be changed after training");
+        }
+        contextTrie = trie ? new ContextTrie(windowLength) : null;
+    }
+
+    /** Returns true if this model stores its String windows in a ContextTrie. */
+    public boolean isContextTrie() {
+        return contextTrie != null;
+    }
+
+    /** Returns the number of windows of this model. */
+    public int getContextCount() {
+        return CharDataMap.size() + (packedMap != null ? packedMap.getSize() : 0)
+            + (contextTrie != null ? contextTrie.getSize() : 0);
+    }
+
+    /** Returns an estimate of the number of bytes used to store the windows of this model, not
+     *  counting the distributions. For CharDataMap, counts the table, a 32 byte entry per
+     *  window, and the String key (a 24 byte String and its byte array, with compact strings),
+     *  assuming compressed references. Used to compare the ways of storing windows. */
+    public long getContextMemoryBytes() {
+        long bytes = 0;
+        if (!CharDataMap.isEmpty()) {
+            int tableLength = Integer.highestOneBit((int) (CharDataMap.size() / 0.75f)) << 1;
+            bytes += 48 + 16 + 4L * tableLength;
+            for (String window : CharDataMap.keySet()) {
+                int keyBytes = 16 + window.length() * (isLatin1(window) ? 1 : 2);
+                bytes += 32 + 24 + ((keyBytes + 7) & ~7);
+            }
+        }
+        if (packedMap != null) {
+            bytes += packedMap.memoryBytes();
+        }
+        if (contextTrie != null) {
+            bytes += contextTrie.memoryBytes();
+        }
+        return bytes;
+    }
+
+    /** Returns an estimate of the number of bytes this model uses: the bytes used to store its
+     *  windows (see getContextMemoryBytes), and the bytes of its distributions. */
+    public long getMemoryBytes() {
+        long bytes = getContextMemoryBytes();
+        String[] windows = stringWindows();
+        for (int i = 0; i < getContextCount(); i++) {
+            bytes += distributionAt(windows, i).memoryBytes();
+        }
+        return bytes;
+    }
+
+    // Returns true if all the characters of the given String fit in one byte.
+    private static boolean isLatin1(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Sets the way the Lists of this model are ordered as they are updated: List.INSERTION_ORDER
+     *  (the default), List.TRANSPOSE or List.FREQUENCY_ORDER (see List). The last two move the
+     *  frequent characters toward the beginning of their lists, so update and the walk find
+     *  them sooner, but since a walk picks characters in list order, the seeded texts of the
+     *  model change. They are still the same from run to run, for the same corpus trained the
+     *  same way; but train, trainParallel and merge may order equal counts differently, so only
+     *  INSERTION_ORDER gives the same texts whichever way the model is built.
+     *  CharDistributions always keep the insertion order. Must be called before the model is
+     *  trained. */
+    public void setListOrder(int listOrder) {
+        if (getContextCount() > 0) {
+            throw new IllegalStateException("The list order can't be changed after training");
+        }
+        if (listOrder != List.INSERTION_ORDER && listOrder != List.TRANSPOSE
+                && listOrder != List.FREQUENCY_ORDER) {
+            throw new IllegalArgumentException("Unknown list order: " + listOrder);
+        }
+        this.listOrder = listOrder;
+    }
+
+    /** Returns the way the Lists of this model are ordered as they are updated. */
+    public int getListOrder() {
+        return listOrder;
+    }
+
+    /** Turns the metrics of this model on or off (they are off by default). When they are on,
+     *  getMetrics returns them, and they are computed as described in ModelMetrics; turning
+     *  them on again starts new metrics. Must be called by the thread that trains the model,
+     *  before other threads generate texts from it. */
+    public void setMetricsEnabled(boolean enabled) {
+        metrics = enabled ? new ModelMetrics() : null;
+        if (enabled) {
+            updateMetrics();
+        }
+    }
+
+    /** Returns the metrics of this model, or null if they are disabled. */
+    public ModelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Computes the gauges of this model (number of windows, fan-out and bytes) now, and
+     *  publishes them to its metrics, which must be enabled. Training only computes them at
+     *  most once per ModelMetrics.GAUGE_INTERVAL_NANOS, since it takes a pass over all the
+     *  windows. Must be called by the thread that trains the model. */
+    public void updateMetrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("The metrics of this model are disabled");
+        }
+        // Bucket i counts the windows followed by 2^i .. 2^(i+1) - 1 characters
+        long[] fanOut = new long[17];
+        long characters = 0;
+        long bytes = getContextMemoryBytes();
+        String[] windows = stringWindows();
+        int size = getContextCount();
+        for (int i = 0; i < size; i++) {
+            Distribution probs = distributionAt(windows, i);
+            fanOut[31 - Integer.numberOfLeadingZeros(Math.max(probs.getSize(), 1))]++;
+            characters += probs.getSize();
+            bytes += probs.memoryBytes();
+        }
+        metrics.setGauges(size, bytes, fanOut, (size == 0) ? 0 : (double) characters / size, System.nanoTime());
+    }
+
+    // Records the time of a training call that started at the given time, and computes the
+    // gauges of the model if they are due.
+    private void trainingDone(long start) {
+        long now = System.nanoTime();
+        metrics.addTrainingTime(now - start);
+        if (metrics.isGaugeDue(now)) {
+            updateMetrics();
+        }
+    }
+
+    // Returns a new, empty distribution of the given type: a CharDistribution, which is dense
+    // over the given alphabet when its fan-out is high, or a List with the given order.
+    private static Distribution newDistribution(boolean compact, int listOrder, Alphabet alphabet) {
+        return compact ? new CharDistribution(alphabet) : new List(listOrder);
+    }
+
+    /** Adds the given text (a document) to the corpus of this model.
+     *  The counts of the previous calls are kept, and the windows of the document start
+     *  at its beginning. Only the probabilities of the windows that appear in the
+     *  document are computed again (lazily, see finalizeAll), so the cost depends on the
+     *  length of the document, not on the size of the model.
+     *  (train takes a String as a file name, hence the different name.) */
+    public void trainText(CharSequence text) {
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        startDocument();
+        char[] chunk = new char[Math.min(text.length(), CorpusReader.CHUNK_SIZE)];
+        for (int from = 0; from < text.length(); from += chunk.length) {
+            int to = Math.min(from + chunk.length, text.length());
+            for (int i = from; i < to; i++) {
+                chunk[i - from] = text.charAt(i);
+            }
+            trainChars(chunk, 0, to - from);
+        }
+        if (metrics != null) {
+            trainingDone(start);
+        }
+    }
+
+    /** Adds the text read from the given reader (a document) to the corpus of this model,
+     *  like trainText. The reader is read to its end, and is not closed. */
+    public void train(Reader reader) throws IOException {
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        startDocument();
+        char[] chunk = new char[CorpusReader.CHUNK_SIZE];
+        int length = reader.read(chunk);
+        while (length >= 0) {
+            trainChars(chunk, 0, length);
+            length = reader.read(chunk);
+        }
+        if (metrics != null) {
+            trainingDone(start);
+        }
+    }
+
+    /** Sets the way getRandomChar samples lists: WALK_SAMPLER (the default), ALIAS_SAMPLER
+     *  or CUMULATIVE_SAMPLER. An alias table selects each character with the same probability
+     *  as a walk does, in constant time, but not from the same random numbers: the seeded
+     *  texts that the model generates are different. A cumulative table selects the same
+     *  characters as a walk, in logarithmic time. Tables are built when probabilities are
+     *  computed. */
+    public void setSamplerType(int samplerType) {
+        if (samplerType != WALK_SAMPLER && samplerType != ALIAS_SAMPLER
+                && samplerType != CUMULATIVE_SAMPLER) {
+            throw new IllegalArgumentException("Unknown sampler type: " + samplerType);
+        }
+        this.samplerType = samplerType;
+        snapshotChanges = null;
+        // Drops the samplers of the previous type
+        setSamplers(false);
+        samplersMissing = samplerType != WALK_SAMPLER;
+    }
+
+    // Drops the samplers of all the distributions of this model, or builds the samplers of
+    // the distributions whose probabilities are computed and that have none.
+    private void setSamplers(boolean build) {
+        ArrayList<Distribution> distributions = new ArrayList<Distribution>(CharDataMap.values());
+        if (contextTrie != null) {
+            for (int i = 0; i < contextTrie.getSize(); i++) {
+                distributions.add(contextTrie.valueAt(i));
+            }
+        }
+        if (packedMap != null) {
+            for (int i = 0; i < packedMap.getSize(); i++) {
+                distributions.add(packedMap.valueAt(i));
+            }
+        }
+        for (int i = 0; i < distributions.size(); i++) {
+            Distribution probs = distributions.get(i);
+            if (!build) {
+                probs.setSampler(null);
+            } else if (probs.getSampler() == null && !probs.isDirty()) {
+                probs.setSampler(newSampler(probs));
+            }
+        }
+    }
+
+    /** Returns the way getRandomChar samples lists. */
+    public int getSamplerType() {
+        return samplerType;
     }
 
     /** Builds a language model from the text in the given file (the corpus). 
-     * @throws Exception */
+     *  The file is decoded in large blocks by a CorpusReader. Like In.isEmpty(), training
+     *  stops at the trailing whitespace of the file. */
     public void train(String fileName) { 
-        String window = ""; 
-        char c; 
-        In in = new In(fileName); 
-        // 
-        for (int i = 0; i < windowLength; i++) { 
-            char tempChar = in.readChar(); 
-            window += tempChar; 
-        } 
-        while (!in.isEmpty()) { 
-            c = in.readChar(); 
-            List probs = CharDataMap.get(window); 
-            if (probs == null) { 
-                probs = new List(); 
-                CharDataMap.put(window, probs); 
-            } 
-            probs.update(c); 
-            window = (window + c).substring(1); 
-        } 
-        for (List probs : CharDataMap.values()) { 
-            calculateProbabilities(probs); 
-        } 
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        startDocument();
+        CorpusReader reader = new CorpusReader(fileName);
+        try {
+            reader.readTrimmed(this::trainChars);
+        } finally {
+            reader.close();
+        }
+        pruneAfterTraining();
+        if (metrics != null) {
+            trainingDone(start);
+        }
     } 
+
+    // Empties the training window, so the next trained character starts a new document.
+    private void startDocument() {
+        trainWindow = "";
+        trainKey = 0;
+        trainFilled = 0;
+    }
+
+    /** Builds a language model from the text in the given file, like train, using all
+     *  the available processors. */
+    public void trainParallel(String fileName) {
+        trainParallel(fileName, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Builds a language model from the text in the given file, like train, using the
+     *  given number of threads. The corpus is split into shards that overlap by windowLength
+     *  characters, so no window is lost at a shard boundary. Each shard is counted into its
+     *  own map (a ContextTable of packed windows, when this model packs its keys), and the
+     *  maps are merged in corpus order, so the model is the same as the one train builds. */
+    public void trainParallel(String fileName, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        char[] text;
+        CorpusReader reader = new CorpusReader(fileName);
+        try {
+            text = reader.readAll();
+        } finally {
+            reader.close();
+        }
+        // Like train, ignores the trailing whitespace of the file
+        int length = text.length;
+        while (length > 0 && Character.isWhitespace(text[length - 1])) {
+            length--;
+        }
+        if (alphabet != null) {
+            // Gives the characters the codes that train would give them. The shards only read
+            // the alphabet (for the index of dense distributions), so it is complete before.
+            for (int i = 0; i < length; i++) {
+                if (alphabet.add(text[i]) == 0 && packedMap != null) {
+                    unpackKeys();
+                }
+            }
+        }
+        int shardSize = Math.max(MIN_SHARD_SIZE, (length - windowLength) / (4 * parallelism) + 1);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            if (packedMap != null) {
+                // Every character has a code, so the shards count packed windows
+                ContextTable counts = pool.invoke(new PackedTrainingShard(text, windowLength, windowLength, length,
+                                                                          shardSize, compactDistributions, listOrder, alphabet));
+                for (int i = 0; i < counts.getSize(); i++) {
+                    mergeWindow(counts.keyAt(i), counts.valueAt(i), false);
+                }
+            } else {
+                LinkedHashMap<String, Distribution> counts = pool.invoke(new TrainingShard(text, windowLength, windowLength, length,
+                                                                                           shardSize, compactDistributions, listOrder, alphabet));
+                for (Map.Entry<String, Distribution> entry : counts.entrySet()) {
+                    mergeWindow(entry.getKey(), entry.getValue(), false);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        pruneAfterTraining();
+        if (metrics != null) {
+            metrics.addCharacters(length);
+            trainingDone(start);
+        }
+    }
+
+    /** Adds the counts of the given model to the counts of this model, as if this model was
+     *  also trained on the corpus of the given model (as separate documents): the counts of the
+     *  windows and characters that both models have are summed, and the others are copied.
+     *  Takes time linear in the size of the given model, so the smaller model should be merged
+     *  into the larger one. (This method does not swap them when this model is the smaller:
+     *  the windows and characters of a merged model keep the order of the corpora, which
+     *  seeded texts depend on.) Only the windows that the given model has get their probabilities
+     *  computed again (lazily, see finalizeAll). The given model is not changed. */
+    public void merge(LanguageModel other) {
+        if (other.windowLength != windowLength) {
+            throw new IllegalArgumentException("The window lengths of the models are different");
+        }
+        String[] windows = other.stringWindows();
+        for (int i = 0; i < windows.length; i++) {
+            mergeCounts(windows[i], other.getWindow(windows[i]));
+        }
+        if (other.packedMap != null) {
+            ContextTable table = other.packedMap;
+            // Maps the codes of the other model to the codes of this model (0 = not mapped yet)
+            int[] codes = new int[Alphabet.CAPACITY + 1];
+            for (int i = 0; i < table.getSize(); i++) {
+                Distribution counts = table.valueAt(i);
+                if (packedMap != null) {
+                    long key = translate(table.keyAt(i), other.alphabet, codes);
+                    if (key != 0 && addToAlphabet("", counts)) {
+                        mergeWindow(key, counts, true);
+                        continue;
+                    }
+                    unpackKeys();
+                }
+                mergeWindow(other.unpack(table.keyAt(i)), counts, true);
+            }
+        }
+        if (metrics != null && metrics.isGaugeDue(System.nanoTime())) {
+            updateMetrics();
+        }
+    }
+
+    /** Returns a new model that has the counts of all the given models, which must have the
+     *  same window length, with the given seed. The new model has the settings (keys,
+     *  distributions, context store, list order, sampler) of the first model. Merging the
+     *  models in the order of their corpora gives the model that training on the corpora,
+     *  one after the other (as separate documents), gives. */
+    public static LanguageModel merge(LanguageModel[] models, int seed) {
+        if (models.length == 0) {
+            throw new IllegalArgumentException("no models to merge");
+        }
+        return merge(models, new LanguageModel(models[0].windowLength, seed));
+    }
+
+    /** Returns a new model that has the counts of all the given models, like
+     *  merge(LanguageModel[], int), and generates different random texts every time. */
+    public static LanguageModel merge(LanguageModel[] models) {
+        if (models.length == 0) {
+            throw new IllegalArgumentException("no models to merge");
+        }
+        return merge(models, new LanguageModel(models[0].windowLength));
+    }
+
+    // Merges the given models into the given empty model.
+    private static LanguageModel merge(LanguageModel[] models, LanguageModel merged) {
+        merged.setPackedKeys(models[0].packedMap != null);
+        merged.setCompactDistributions(models[0].compactDistributions);
+        merged.setContextTrie(models[0].contextTrie != null);
+        merged.setSamplerType(models[0].samplerType);
+        merged.setListOrder(models[0].listOrder);
+        for (int i = 0; i < models.length; i++) {
+            merged.merge(models[i]);
+        }
+        return merged;
+    }
+
+    /** Adds the counts of the given distribution to the given window, in whichever context
+     *  store this model keeps it. The given distribution is not changed: the model keeps a
+     *  copy of it, of the type it uses, when the window is new. */
+    void mergeCounts(String window, Distribution counts) {
+        if (alphabet != null && !addToAlphabet(window, counts) && packedMap != null) {
+            unpackKeys();
+        }
+        if (packedMap != null) {
+            mergeWindow(pack(window), counts, true);
+        } else {
+            mergeWindow(window, counts, true);
+        }
+    }
+
+    // Adds the counts of the given distribution to the distribution of the given packed
+    // window, or adds the window with the given distribution (or a copy of it).
+    private void mergeWindow(long key, Distribution counts, boolean copy) {
+        Distribution probs = packedMap.get(key);
+        if (probs == null) {
+            probs = copy ? copyOf(counts) : counts;
+            packedMap.put(key, probs);
+            markChanged(probs, key);
+        } else {
+            if (!probs.isDirty()) {
+                markChanged(probs, key);
+            }
+            probs.merge(counts);
+        }
+    }
+
+    // Adds the counts of the given distribution to the distribution of the given String
+    // window, or adds the window with the given distribution (or a copy of it).
+    private void mergeWindow(String window, Distribution counts, boolean copy) {
+        Distribution probs = getWindow(window);
+        if (probs == null) {
+            probs = copy ? copyOf(counts) : counts;
+            putWindow(window, probs);
+            markChanged(probs, window);
+        } else {
+            if (!probs.isDirty()) {
+                markChanged(probs, window);
+            }
+            probs.merge(counts);
+        }
+    }
+
+    // Returns a copy of the counts of the given distribution, of the type this model uses.
+    private Distribution copyOf(Distribution counts) {
+        Distribution probs = newDistribution(compactDistributions, listOrder, alphabet);
+        probs.merge(counts);
+        return probs;
+    }
+
+    // Adds the characters of the given window and distribution to the alphabet. Returns
+    // false if they don't all fit.
+    private boolean addToAlphabet(String window, Distribution counts) {
+        for (int i = 0; i < window.length(); i++) {
+            if (alphabet.add(window.charAt(i)) == 0) {
+                return false;
+            }
+        }
+        CharData[] arr = counts.toArray();
+        for (int i = 0; i < arr.length; i++) {
+            if (alphabet.add(arr[i].chr) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the packed key, in this model, of the window that the given packed key stands for
+    // in a model with the given alphabet, or 0 if the alphabet of this model is full. The given
+    // array caches the codes of this model for the codes of the other alphabet.
+    private long translate(long key, Alphabet from, int[] codes) {
+        long translated = 0;
+        for (int shift = (windowLength - 1) * Alphabet.BITS; shift >= 0; shift -= Alphabet.BITS) {
+            int code = (int) ((key >>> shift) & Alphabet.CAPACITY);
+            if (codes[code] == 0) {
+                codes[code] = alphabet.add(from.charOf(code));
+                if (codes[code] == 0) {
+                    return 0;
+                }
+            }
+            translated = (translated << Alphabet.BITS) | codes[code];
+        }
+        return translated;
+    }
+
+    // The smallest number of windows that trainParallel counts in one task.
+    private static final int MIN_SHARD_SIZE = 1 << 15;
+
+    // Counts the windows that end at positions from .. to - 1 of a corpus. A task with more
+    // than shardSize windows is split in two halves, which are counted in parallel and then
+    // merged. The maps keep the windows in order of first appearance in the corpus.
+    private static class TrainingShard extends RecursiveTask<LinkedHashMap<String, Distribution>> {
+        private static final long serialVersionUID = 1L;
+
+        private final char[] text;
+        private final int windowLength;
+        private final int from;
+        private final int to;
+        private final int shardSize;
+        private final boolean compact;
+        private final int listOrder;
+        private final Alphabet alphabet;
+
+        TrainingShard(char[] text, int windowLength, int from, int to, int shardSize, boolean compact,
+                      int listOrder, Alphabet alphabet) {
+            this.text = text;
+            this.windowLength = windowLength;
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+            this.compact = compact;
+            this.listOrder = listOrder;
+            this.alphabet = alphabet;
+        }
+
+        protected LinkedHashMap<String, Distribution> compute() {
+            if (to - from <= shardSize) {
+                LinkedHashMap<String, Distribution> counts = new LinkedHashMap<String, Distribution>();
+                for (int i = from; i < to; i++) {
+                    String window = new String(text, i - windowLength, windowLength);
+                    Distribution probs = counts.get(window);
+                    if (probs == null) {
+                        probs = newDistribution(compact, listOrder, alphabet);
+                        counts.put(window, probs);
+                    }
+                    probs.update(text[i]);
+                }
+                return counts;
+            }
+            int middle = (from + to) >>> 1;
+            TrainingShard left = new TrainingShard(text, windowLength, from, middle, shardSize, compact,
+                                                   listOrder, alphabet);
+            TrainingShard right = new TrainingShard(text, windowLength, middle, to, shardSize, compact,
+                                                    listOrder, alphabet);
+            left.fork();
+            LinkedHashMap<String, Distribution> rightCounts = right.compute();
+            LinkedHashMap<String, Distribution> counts = left.join();
+            for (Map.Entry<String, Distribution> entry : rightCounts.entrySet()) {
+                Distribution probs = counts.get(entry.getKey());
+                if (probs == null) {
+                    counts.put(entry.getKey(), entry.getValue());
+                } else {
+                    probs.merge(entry.getValue());
+                }
+            }
+            return counts;
+        }
+    }
+
+    // Counts the windows that end at positions from .. to - 1 of a corpus, like TrainingShard,
+    // into ContextTables of packed windows. All the characters of the corpus must have a code
+    // in the alphabet.
+    private static class PackedTrainingShard extends RecursiveTask<ContextTable> {
+        private static final long serialVersionUID = 1L;
+
+        private final char[] text;
+        private final int windowLength;
+        private final int from;
+        private final int to;
+        private final int shardSize;
+        private final boolean compact;
+        private final int listOrder;
+        private final Alphabet alphabet;
+
+        PackedTrainingShard(char[] text, int windowLength, int from, int to, int shardSize, boolean compact,
+                            int listOrder, Alphabet alphabet) {
+            this.text = text;
+            this.windowLength = windowLength;
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+            this.compact = compact;
+            this.listOrder = listOrder;
+            this.alphabet = alphabet;
+        }
+
+        protected ContextTable compute() {
+            if (to - from <= shardSize) {
+                ContextTable counts = new ContextTable();
+                if (from >= to) {
+                    // The corpus is not longer than a window
+                    return counts;
+                }
+                int bits = windowLength * Alphabet.BITS;
+                long mask = (bits == 64) ? -1L : (1L << bits) - 1;
+                long key = 0;
+                for (int i = from - windowLength; i < from; i++) {
+                    key = (key << Alphabet.BITS) | alphabet.codeOf(text[i]);
+                }
+                for (int i = from; i < to; i++) {
+                    Distribution probs = counts.get(key);
+                    if (probs == null) {
+                        probs = newDistribution(compact, listOrder, alphabet);
+                        counts.put(key, probs);
+                    }
+                    probs.update(text[i]);
+                    key = ((key << Alphabet.BITS) | alphabet.codeOf(text[i])) & mask;
+                }
+                return counts;
+            }
+            int middle = (from + to) >>> 1;
+            PackedTrainingShard left = new PackedTrainingShard(text, windowLength, from, middle, shardSize, compact,
+                                                               listOrder, alphabet);
+            PackedTrainingShard right = new PackedTrainingShard(text, windowLength, middle, to, shardSize, compact,
+                                                                listOrder, alphabet);
+            left.fork();
+            ContextTable rightCounts = right.compute();
+            ContextTable counts = left.join();
+            for (int i = 0; i < rightCounts.getSize(); i++) {
+                Distribution probs = counts.get(rightCounts.keyAt(i));
+                if (probs == null) {
+                    counts.put(rightCounts.keyAt(i), rightCounts.valueAt(i));
+                } else {
+                    probs.merge(rightCounts.valueAt(i));
+                }
+            }
+            return counts;
+        }
+    }
+
+    /** Computes the probabilities of all the lists whose counts changed since their
+     *  probabilities were computed. Training does not compute probabilities: each list
+     *  computes them when getRandomChar first uses it. Calling this method does the work
+     *  up front instead. */
+    public void finalizeAll() {
+        for (int i = 0; i < changedLists.size(); i++) {
+            Distribution probs = changedLists.get(i);
+            if (probs.isDirty()) {
+                calculateProbabilities(probs);
+            }
+            probs.setQueued(false);
+        }
+        changedLists.clear();
+    }
+
+    // Returns the number of distributions in the list of changed lists.
+    int getPendingCount() {
+        return changedLists.size();
+    }
+
+    /** Freezes the current counts of this model into an immutable ModelSnapshot, publishes it
+     *  (see getSnapshot), and returns it. Other threads can generate texts from the published
+     *  snapshot, without locks, while this model goes on training: only the thread that trains
+     *  the model may call this method. A snapshot samples each window like this model does
+     *  (with a cumulative table, instead of a walk, when the model walks its lists), so with
+     *  the same random numbers, it generates the same texts as this model at that time.
+     *  The first snapshot freezes all the windows. After that, only the windows that changed
+     *  since the previous snapshot are frozen, and added to it as a new level (see
+     *  ModelSnapshot), so the cost depends on the changes, not on the size of the model.
+     *  Pruning the model, or changing its sampler type, makes the next snapshot freeze all
+     *  the windows again. */
+    public ModelSnapshot snapshot() {
+        HashMap<String, Sampler> samplers = new HashMap<String, Sampler>();
+        ModelSnapshot next;
+        if (snapshot == null || snapshotChanges == null) {
+            String[] windows = stringWindows();
+            for (int i = 0; i < getContextCount(); i++) {
+                String window = (i < windows.length) ? windows[i] : unpack(packedMap.keyAt(i - windows.length));
+                samplers.put(window, freeze(distributionAt(windows, i)));
+            }
+            next = new ModelSnapshot(windowLength, samplers);
+        } else {
+            for (int i = 0; i < snapshotChanges.size(); i++) {
+                String window = snapshotChanges.get(i);
+                if (!samplers.containsKey(window)) {
+                    samplers.put(window, freeze(lookupWindow(window)));
+                }
+            }
+            next = snapshot.withChanges(samplers);
+        }
+        snapshotChanges = new ArrayList<String>();
+        snapshot = next;
+        return next;
+    }
+
+    /** Returns the last snapshot of this model (see snapshot), or null if none was taken.
+     *  Any thread may call this method. */
+    public ModelSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    // Returns the sampler of the given distribution, computing its probabilities if needed.
+    // Walked distributions get a cumulative table, which selects the same characters.
+    private Sampler freeze(Distribution probs) {
+        if (probs.isDirty()) {
+            calculateProbabilities(probs);
+        }
+        Sampler sampler = probs.getSampler();
+        if (sampler == null) {
+            sampler = newSampler(probs);
+            probs.setSampler(sampler);
+        }
+        return (sampler != null) ? sampler : new CumulativeTable(probs);
+    }
+
+    // Returns the distribution of the given window, from whichever context store has it.
+    private Distribution lookupWindow(String window) {
+        if (packedMap != null) {
+            Distribution probs = packedMap.get(pack(window));
+            if (probs != null) {
+                return probs;
+            }
+        }
+        return getWindow(window);
+    }
+
+    /** Sets the thresholds that train(String) and trainParallel prune the model with, once the
+     *  file is counted (see prune). 1 and 1 (the default) turn pruning off. Since the counts
+     *  of pruned windows are lost, a model that is trained on several files should rather be
+     *  pruned once, after the last one. */
+    public void setPruning(int minWindowCount, int minCharCount) {
+        if (minWindowCount < 1 || minCharCount < 1) {
+            throw new IllegalArgumentException("pruning thresholds must be positive");
+        }
+        pruneWindowCount = minWindowCount;
+        pruneCharCount = minCharCount;
+    }
+
+    // Prunes this model with the thresholds set by setPruning, if any.
+    private void pruneAfterTraining() {
+        if (pruneWindowCount > 1 || pruneCharCount > 1) {
+            prune(pruneWindowCount, pruneCharCount);
+        }
+    }
+
+    /** Removes the rare windows and characters of this model: the windows that were seen
+     *  fewer than minWindowCount times, and the characters that followed a window fewer than
+     *  minCharCount times (a window that loses all its characters is removed too). With long
+     *  windows, most windows are seen only once, and take most of the memory of the model.
+     *  Only the windows that lost characters get their probabilities computed again (lazily,
+     *  see finalizeAll). Returns the number of windows removed. */
+    public int prune(int minWindowCount, int minCharCount) {
+        String[] windows = stringWindows();
+        int size = getContextCount();
+        boolean[] keep = new boolean[size];
+        int removed = 0;
+        for (int i = 0; i < size; i++) {
+            Distribution probs = distributionAt(windows, i);
+            CharData[] arr = probs.toArray();
+            keep[i] = countOf(arr) >= minWindowCount;
+            if (keep[i] && minCharCount > 1) {
+                boolean clean = !probs.isDirty();
+                for (int j = 0; j < arr.length; j++) {
+                    if (arr[j].count < minCharCount) {
+                        probs.remove(arr[j].chr);
+                    }
+                }
+                keep[i] = probs.getSize() > 0;
+                if (keep[i] && clean && probs.isDirty()) {
+                    queue(probs);
+                }
+                if (probs.getSize() < arr.length) {
+                    // The snapshots don't track removals
+                    snapshotChanges = null;
+                }
+            }
+            if (!keep[i]) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            retainWindows(windows, keep);
+        }
+        if (metrics != null) {
+            updateMetrics();
+        }
+        return removed;
+    }
+
+    /** Shrinks this model to about the given number of bytes (see getMemoryBytes), by removing
+     *  its least frequent windows: the windows seen the fewest times go first, and among them,
+     *  the ones added last. Only the removed windows change, so no probabilities are computed
+     *  again. Returns the number of windows removed. */
+    public int compact(long maxBytes) {
+        int removed = 0;
+        long bytes = getMemoryBytes();
+        while (bytes > maxBytes && getContextCount() > 0) {
+            String[] windows = stringWindows();
+            int size = getContextCount();
+            // Sorts the windows by count, and then from the last added to the first added
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = ((long) countOf(distributionAt(windows, i).toArray()) << 32) | (size - 1 - i);
+            }
+            Arrays.sort(order);
+            boolean[] keep = new boolean[size];
+            Arrays.fill(keep, true);
+            // The store of the windows shrinks by about the same amount for each window
+            long windowBytes = getContextMemoryBytes() / size;
+            long excess = bytes - maxBytes;
+            for (int k = 0; k < size && excess > 0; k++) {
+                int i = size - 1 - (int) order[k];
+                keep[i] = false;
+                removed++;
+                excess -= distributionAt(windows, i).memoryBytes() + windowBytes;
+            }
+            retainWindows(windows, keep);
+            bytes = getMemoryBytes();
+        }
+        if (metrics != null) {
+            updateMetrics();
+        }
+        return removed;
+    }
+
+    // Returns the sum of the counts of the given characters.
+    private static int countOf(CharData[] arr) {
+        int count = 0;
+        for (int i = 0; i < arr.length; i++) {
+            count += arr[i].count;
+        }
+        return count;
+    }
+
+    // Returns the distribution of window i of this model. Windows are numbered like save
+    // writes them: the given String windows (see stringWindows), and then the packed windows.
+    private Distribution distributionAt(String[] windows, int i) {
+        return (i < windows.length) ? getWindow(windows[i]) : packedMap.valueAt(i - windows.length);
+    }
+
+    // Keeps only the windows of this model whose keep flag is set (numbered like in
+    // distributionAt). The stores are built again, in the order the windows were added, so
+    // they shrink, and CharDataMap is the same map that loading the model would build.
+    private void retainWindows(String[] windows, boolean[] keep) {
+        for (int i = 0; i < changedLists.size(); i++) {
+            changedLists.get(i).setQueued(false);
+        }
+        ArrayList<Distribution> changed = new ArrayList<Distribution>();
+        HashMap<String, Distribution> map = new HashMap<String, Distribution>();
+        ArrayList<String> order = new ArrayList<String>();
+        ContextTrie trie = (contextTrie != null) ? new ContextTrie(windowLength) : null;
+        for (int i = 0; i < windows.length; i++) {
+            if (keep[i]) {
+                Distribution probs = getWindow(windows[i]);
+                if (trie != null) {
+                    trie.put(windows[i], probs);
+                } else {
+                    map.put(windows[i], probs);
+                    order.add(windows[i]);
+                }
+                if (probs.isDirty()) {
+                    probs.setQueued(true);
+                    changed.add(probs);
+                }
+            }
+        }
+        CharDataMap = map;
+        windowOrder = order;
+        contextTrie = trie;
+        if (packedMap != null) {
+            int kept = 0;
+            for (int j = 0; j < packedMap.getSize(); j++) {
+                if (keep[windows.length + j]) {
+                    kept++;
+                }
+            }
+            ContextTable table = new ContextTable(kept, packedMap.getLoadFactor());
+            for (int j = 0; j < packedMap.getSize(); j++) {
+                if (keep[windows.length + j]) {
+                    table.put(packedMap.keyAt(j), packedMap.valueAt(j));
+                    if (packedMap.valueAt(j).isDirty()) {
+                        packedMap.valueAt(j).setQueued(true);
+                        changed.add(packedMap.valueAt(j));
+                    }
+                }
+            }
+            packedMap = table;
+        }
+        // The removed distributions don't need their probabilities any more
+        changedLists = changed;
+        snapshotChanges = null;
+    }
+
+    // Trains this model on the characters chars[from] .. chars[to - 1], which follow the
+    // characters given to the previous call. The first windowLength characters only fill
+    // the window. If a character does not fit in the alphabet, moves all the packed windows
+    // to CharDataMap, and goes on with String keys.
+    private void trainChars(char[] chars, int from, int to) {
+        if (metrics != null) {
+            metrics.addCharacters(to - from);
+        }
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            int code = 0;
+            if (alphabet != null) {
+                code = alphabet.add(c);
+                if (code == 0 && packedMap != null) {
+                    if (trainFilled == windowLength) {
+                        trainWindow = unpack(trainKey);
+                    }
+                    unpackKeys();
+                }
+            }
+            if (trainFilled < windowLength) {
+                trainWindow += c;
+                trainKey = roll(trainKey, code);
+                trainFilled++;
+                continue;
+            }
+            if (packedMap != null) {
+                Distribution probs = packedMap.get(trainKey);
+                if (probs == null) {
+                    probs = newDistribution(compactDistributions, listOrder, alphabet);
+                    packedMap.put(trainKey, probs);
+                }
+                if (!probs.isDirty()) {
+                    markChanged(probs, trainKey);
+                }
+                probs.update(c);
+                trainKey = roll(trainKey, code);
+            } else {
+                Distribution probs = getWindow(trainWindow); 
+                if (probs == null) { 
+                    probs = newDistribution(compactDistributions, listOrder, alphabet); 
+                    putWindow(trainWindow, probs); 
+                } 
+                if (!probs.isDirty()) {
+                    markChanged(probs, trainWindow);
+                }
+                probs.update(c); 
+                trainWindow = (trainWindow + c).substring(1); 
+            }
+        }
+    }
+
+    // Shifts the given code into the given packed window, dropping its oldest character.
+    private long roll(long key, int code) {
+        key = (key << Alphabet.BITS) | code;
+        int bits = windowLength * Alphabet.BITS;
+        return bits == 64 ? key : key & ((1L << bits) - 1);
+    }
+
+    // Returns the packed key of the given window, or 0 if one of its characters
+    // is not in the alphabet.
+    private long pack(String window) {
+        long key = 0;
+        for (int i = 0; i < window.length(); i++) {
+            int code = alphabet.codeOf(window.charAt(i));
+            if (code == 0) {
+                return 0;
+            }
+            key = roll(key, code);
+        }
+        return key;
+    }
+
+    // Returns the window that the given packed key stands for.
+    private String unpack(long key) {
+        char[] window = new char[windowLength];
+        for (int i = windowLength - 1; i >= 0; i--) {
+            window[i] = alphabet.charOf((int) (key & Alphabet.CAPACITY));
+            key >>>= Alphabet.BITS;
+        }
+        return new String(window);
+    }
+
+    // Returns the distribution of the given window, from the trie or CharDataMap.
+    private Distribution getWindow(String window) {
+        return (contextTrie != null) ? contextTrie.get(window) : CharDataMap.get(window);
+    }
+
+    // Records that the given distribution, of the given window, is about to change, while its
+    // probabilities are computed: it must be computed again, and sent to the next snapshot.
+    private void markChanged(Distribution probs, String window) {
+        queue(probs);
+        if (snapshotChanges != null) {
+            snapshotChanges.add(window);
+            if (snapshotChanges.size() > getContextCount()) {
+                // A window changes again each time it is sampled in between: the next
+                // snapshot might as well freeze all the windows
+                snapshotChanges = null;
+            }
+        }
+    }
+
+    // Records that the given distribution, of the given packed window, is about to change,
+    // like markChanged(Distribution, String).
+    private void markChanged(Distribution probs, long key) {
+        markChanged(probs, (snapshotChanges != null) ? unpack(key) : null);
+    }
+
+    // Adds the given distribution to the list of changed lists, unless it is already there
+    // (its probabilities were computed when it was sampled, and it changed again).
+    private void queue(Distribution probs) {
+        if (!probs.isQueued()) {
+            probs.setQueued(true);
+            changedLists.add(probs);
+        }
+    }
+
+    // Adds a new window and its distribution to the trie, or to CharDataMap.
+    private void putWindow(String window, Distribution probs) {
+        if (contextTrie != null) {
+            contextTrie.put(window, probs);
+        } else {
+            CharDataMap.put(window, probs);
+            windowOrder.add(window);
+        }
+    }
+
+    // Returns the String windows of this model (of the trie, or of CharDataMap), in the
+    // order they were added.
+    private String[] stringWindows() {
+        return (contextTrie != null) ? contextTrie.windows() : windowOrder.toArray(new String[0]);
+    }
+
+    // Moves all the packed windows to CharDataMap, and switches this model to String keys.
+    private void unpackKeys() {
+        for (int i = 0; i < packedMap.getSize(); i++) {
+            putWindow(unpack(packedMap.keyAt(i)), packedMap.valueAt(i));
+        }
+        packedMap = null;
+    }
     // Computes and sets the probabilities (p and cp fields) of all the
-	// characters in the given list. */
-	public void calculateProbabilities(List probs) {
-        if (probs == null || probs.getFirst() == null) {
+	// characters in the given list (or other distribution). */
+	public void calculateProbabilities(Distribution probs) {
+        if (probs == null || probs.getSize() == 0) {
             throw new IllegalArgumentException("The probability list is null or empty");
         }
-        // Calculate the total number of characters
-        int totalCounter = 0;
-        Node current = probs.getFirstNode();
-        while (current != null) {
-            totalCounter += current.cp.count;
-            current = current.next;
-        }
-    
-        // Calculate and set the probabilities (p and cp fields) of all the characters in the list
-        current = probs.getFirstNode();
-        double cumulativeProbability = 0.0;
-        while (current != null) {
-            // Calculate probability (p field)
-            current.cp.p = (double) current.cp.count / totalCounter;
-    
-            // Calculate cumulative probability (cp field)
-            cumulativeProbability += current.cp.p;
-            current.cp.cp = cumulativeProbability;
-    
-            current = current.next;
+        probs.calculateProbabilities();
+        probs.setSampler(newSampler(probs));
+    }
+
+    // Returns a sampler of the type this model uses for the given distribution, whose
+    // probabilities were computed, or null if this model walks its distributions.
+    private Sampler newSampler(Distribution probs) {
+        switch (samplerType) {
+            case ALIAS_SAMPLER:
+                return new AliasTable(probs);
+            case CUMULATIVE_SAMPLER:
+                return new CumulativeTable(probs);
+            default:
+                return null;
         }
     }
-    // Returns a random character from the given probabilities list.
-	public char getRandomChar(List probs) {
-        if (probs == null || probs.getFirst() == null) {
+    // Returns a random character from the given probabilities list (or other distribution).
+    // Computes the probabilities of the list first, if its counts changed.
+	public char getRandomChar(Distribution probs) {
+        return getRandomChar(probs, randomGenerator);
+    }
+
+    // Returns a random character from the given probabilities list (or other distribution),
+    // using the given random number generator instead of the generator of this model.
+	public char getRandomChar(Distribution probs, RandomGenerator random) {
+        if (probs == null || probs.getSize() == 0) {
             throw new IllegalArgumentException("The probability list is null or empty");
         }
-    
-        double randomValue = randomGenerator.nextDouble();
-        char result = 0;  // default value
-    
-        Node current = probs.getFirstNode();
-        while (current != null) {
-            if (randomValue < current.cp.cp) {
-                result = current.cp.chr;
-                break;
+        if (probs.isDirty()) {
+            calculateProbabilities(probs);
+        }
+        Sampler sampler = probs.getSampler();
+        if (sampler == null) {
+            sampler = newSampler(probs);
+            if (sampler == null) {
+                // Walks the distribution
+                sampler = probs;
+            } else {
+                probs.setSampler(sampler);
             }
-            current = current.next;
         }
-    
-        if (result == 0) {
-            throw new IllegalStateException("Unable to determine a random character");
+        if (metrics != null && sampler == probs) {
+            int walked = probs.walk(random.nextDouble());
+            metrics.recordWalk((walked >>> 16) + 1);
+            return (char) walked;
         }
-    
-        return result;
+        return sampler.sample(random.nextDouble());
     }
+    /** Generates a random text, starting with the last windowLength characters of the given
+     *  text, and adding up to textLength characters to them (fewer, if the model reaches a
+     *  window it has never seen). The text is built in a char array, so generating each
+     *  character takes constant time, and with packed keys, allocates nothing. */
     public String generate(String initialText, int textLength) { 
         if (initialText.length() < windowLength) { 
-        return initialText; 
-        }
-        String window = initialText.substring(initialText.length() - windowLength); 
-        String generatedText = window; 
-        int numberOfLetters = textLength + windowLength; 
-        while ((generatedText.length() < numberOfLetters)) { 
-        List currList = CharDataMap.get(window); 
-        if (currList == null) { 
-        break; 
-        } 
-        generatedText += getRandomChar(currList); 
-        window = generatedText.substring(generatedText.length() - windowLength); 
-        } 
-        return generatedText; 
-        } 
+            return initialText; 
+        }
+        return generate(initialText, textLength, randomGenerator);
+    } 
+
+    /** Generates a random text like generate(String, int), using the given random number
+     *  generator instead of the generator of this model. */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        if (initialText.length() < windowLength) { 
+            return initialText; 
+        }
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        char[] text = newText(windowLength, textLength);
+        initialText.getChars(initialText.length() - windowLength, initialText.length(), text, 0);
+        int end = windowLength + Math.max(textLength, 0);
+        int length = generateInto(text, windowLength, Math.min(text.length, end), random);
+        while (length == text.length && length < end) {
+            text = grow(text, end);
+            length = generateInto(text, length, Math.min(text.length, end), random);
+        }
+        String generated = new String(text, 0, length);
+        if (metrics != null) {
+            metrics.recordGenerate(System.nanoTime() - start);
+        }
+        return generated;
+    }
+
+    /** Generates the texts of the given requests, using the given number of threads, and
+     *  returns them in the order of the requests. Each request uses its own stream of random
+     *  numbers (a SplittableRandom built from the seed of the request), so a request always
+     *  gets the same text, however the requests are scheduled. The generator of this model
+     *  is not used. The model must not be trained while the texts are generated. */
+    public String[] generate(GenerationRequest[] requests, int threads) throws InterruptedException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive");
+        }
+        // The threads only read the model: computes the probabilities and builds the samplers
+        // that are still missing, so the threads never set anything
+        finalizeAll();
+        if (samplersMissing) {
+            setSamplers(true);
+            samplersMissing = false;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<String>> texts = new ArrayList<Future<String>>();
+            for (int i = 0; i < requests.length; i++) {
+                final GenerationRequest request = requests[i];
+                texts.add(pool.submit(() -> generate(request.getInitialText(), request.getTextLength(),
+                                                     new SplittableRandom(request.getSeed()))));
+            }
+            String[] results = new String[requests.length];
+            for (int i = 0; i < results.length; i++) {
+                try {
+                    results[i] = texts.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IllegalStateException("Generation failed", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // A text length that makes the streaming generate run until it is cancelled,
+    // or reaches a window it has never seen.
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+
+    /** Generates a random text like generate, but writes it to the given output in chunks of
+     *  chunkSize characters, instead of returning it, so the text does not have to fit in
+     *  memory and can be consumed while it is generated. The output gets the last windowLength
+     *  characters of the initial text, followed by up to textLength generated characters
+     *  (UNBOUNDED for no limit). If the output is Flushable, it is flushed after each chunk.
+     *  Generation stops early when cancelled returns true (it is checked before each chunk,
+     *  and may be null). Returns the number of generated characters. With the same seed,
+     *  the text is the same as the text generate returns. */
+    public long generate(String initialText, long textLength, Appendable out, int chunkSize,
+                         BooleanSupplier cancelled) throws IOException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        if (initialText.length() < windowLength) {
+            write(out, initialText.toCharArray(), 0, initialText.length());
+            return 0;
+        }
+        // The window of the next character is always text[0] .. text[windowLength - 1]
+        char[] text = new char[windowLength + chunkSize];
+        initialText.getChars(initialText.length() - windowLength, initialText.length(), text, 0);
+        write(out, text, 0, windowLength);
+        long generated = 0;
+        while (generated < textLength && (cancelled == null || !cancelled.getAsBoolean())) {
+            int to = windowLength + (int) Math.min(chunkSize, textLength - generated);
+            int end = generateInto(text, windowLength, to, randomGenerator);
+            write(out, text, windowLength, end - windowLength);
+            generated += end - windowLength;
+            if (end < to) {
+                break;
+            }
+            System.arraycopy(text, end - windowLength, text, 0, windowLength);
+        }
+        return generated;
+    }
+
+    /** Generates a random text like generate(String, long, Appendable, int, BooleanSupplier),
+     *  and writes it to the given stream in UTF-8. The stream is flushed, not closed. */
+    public long generate(String initialText, long textLength, OutputStream out, int chunkSize,
+                         BooleanSupplier cancelled) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        return generate(initialText, textLength, writer, chunkSize, cancelled);
+    }
+
+    // Writes text[from] .. text[from + length - 1] to the given output, and flushes it.
+    private static void write(Appendable out, char[] text, int from, int length) throws IOException {
+        if (out instanceof Writer) {
+            ((Writer) out).write(text, from, length);
+        } else {
+            out.append(CharBuffer.wrap(text, from, length));
+        }
+        if (out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+    }
+
+    // Generates characters into text[from] .. text[to - 1]. The window of the first character
+    // is text[from - windowLength] .. text[from - 1]. Stops early if the model has no
+    // distribution for a window. Returns the position after the last generated character.
+    private int generateInto(char[] text, int from, int to, RandomGenerator random) {
+        int i = from;
+        if (packedMap != null) {
+            long key = pack(new String(text, from - windowLength, windowLength));
+            if (key == 0) {
+                return from;
+            }
+            while (i < to) {
+                Distribution currList = packedMap.get(key);
+                if (currList == null) {
+                    break;
+                }
+                char c = getRandomChar(currList, random);
+                text[i++] = c;
+                key = roll(key, alphabet.codeOf(c));
+            }
+        } else if (contextTrie != null) {
+            // The trie reads the window straight from the text
+            while (i < to) {
+                Distribution currList = contextTrie.get(text, i - windowLength);
+                if (currList == null) {
+                    break;
+                }
+                text[i++] = getRandomChar(currList, random);
+            }
+        } else {
+            while (i < to) {
+                Distribution currList = CharDataMap.get(new String(text, i - windowLength, windowLength));
+                if (currList == null) {
+                    break;
+                }
+                text[i++] = getRandomChar(currList, random);
+            }
+        }
+        return i;
+    }
+
+    // The longest text that generate returns (the largest array most JVMs allocate).
+    static final int MAX_TEXT_LENGTH = Integer.MAX_VALUE - 8;
+
+    // The number of characters to generate that a text has room for at first. The text grows
+    // as it is generated, so a request for a long text that stops early stays small.
+    static final int INITIAL_TEXT_CAPACITY = 1 << 12;
+
+    // Returns an array for a text of start initial characters, followed by up to textLength
+    // generated characters, with room for at most INITIAL_TEXT_CAPACITY of these. Throws an
+    // IllegalArgumentException if the text could be longer than MAX_TEXT_LENGTH.
+    static char[] newText(int start, int textLength) {
+        if ((long) start + textLength > MAX_TEXT_LENGTH) {
+            throw new IllegalArgumentException("text length must be at most " + (MAX_TEXT_LENGTH - start));
+        }
+        return new char[start + Math.min(Math.max(textLength, 0), INITIAL_TEXT_CAPACITY)];
+    }
+
+    // Returns a copy of the given full text, half as long again, but not longer than end.
+    static char[] grow(char[] text, int end) {
+        return Arrays.copyOf(text, (int) Math.min(text.length + (text.length >> 1) + 1L, end));
+    }
+
+    // The first bytes of a model file ("LMDL"), and the version of its format.
+    private static final int MAGIC = 0x4C4D444C;
+    private static final int VERSION = 1;
+
+    /** Saves this model to the given file, in a compact binary format. The file holds the
+     *  window length, the settings of the model (key mode, distribution type, context store,
+     *  list order, sampler type), and for each window, its characters and the characters and
+     *  counts of its distribution, in the order the windows were added to the model.
+     *  Characters and counts are written as variable length integers, and the characters of a
+     *  distribution as differences from the previous character. */
+    public void save(String fileName) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeVarint(out, windowLength);
+            out.writeByte((packedMap != null ? 1 : 0) | (compactDistributions ? 2 : 0)
+                          | (contextTrie != null ? 4 : 0) | (listOrder << 3));
+            writeVarint(out, samplerType);
+            writeVarint(out, getContextCount());
+            String[] windows = stringWindows();
+            for (int i = 0; i < windows.length; i++) {
+                writeContext(out, windows[i], getWindow(windows[i]));
+            }
+            if (packedMap != null) {
+                for (int i = 0; i < packedMap.getSize(); i++) {
+                    writeContext(out, unpack(packedMap.keyAt(i)), packedMap.valueAt(i));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Loads a model saved by save, with the given seed. The loaded model is the same as the
+     *  saved one: toString returns the same text, and generate returns the same texts as a
+     *  model trained with the same seed. */
+    public static LanguageModel load(String fileName, int seed) throws IOException {
+        return load(fileName, new LanguageModel(0, seed));
+    }
+
+    /** Loads a model saved by save, that generates different random texts every time. */
+    public static LanguageModel load(String fileName) throws IOException {
+        return load(fileName, new LanguageModel(0));
+    }
+
+    // Loads the given file into the given empty model.
+    private static LanguageModel load(String fileName, LanguageModel model) throws IOException {
+        // Reading the whole file at once is much faster than reading it byte by byte
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(Paths.get(fileName)));
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a language model file: " + fileName);
+            }
+            int version = in.get() & 0xFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported language model file version: " + version);
+            }
+            model.windowLength = readVarint(in);
+            int flags = in.get() & 0xFF;
+            model.setPackedKeys((flags & 1) != 0);
+            model.setCompactDistributions((flags & 2) != 0);
+            model.setContextTrie((flags & 4) != 0);
+            model.setListOrder(flags >>> 3);
+            model.setSamplerType(readVarint(in));
+            int contexts = readVarint(in);
+            char[] window = new char[model.windowLength];
+            for (int i = 0; i < contexts; i++) {
+                for (int j = 0; j < window.length; j++) {
+                    window[j] = (char) readVarint(in);
+                }
+                // Builds the list from its last character to its first
+                int size = readVarint(in);
+                char[] symbols = new char[size];
+                int[] counts = new int[size];
+                int previous = 0;
+                for (int j = 0; j < size; j++) {
+                    previous += zigzagDecode(readVarint(in));
+                    symbols[j] = (char) previous;
+                    counts[j] = readVarint(in);
+                }
+                Distribution probs;
+                if (model.compactDistributions) {
+                    CharDistribution distribution = new CharDistribution(model.alphabet);
+                    for (int j = size - 1; j >= 0; j--) {
+                        distribution.add(symbols[j], counts[j]);
+                    }
+                    probs = distribution;
+                } else {
+                    List list = new List(model.listOrder);
+                    for (int j = size - 1; j >= 0; j--) {
+                        list.addFirst(symbols[j]);
+                        list.getFirst().count = counts[j];
+                    }
+                    probs = list;
+                }
+                model.putLoaded(window, symbols, probs);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated language model file: " + fileName, e);
+        }
+        return model;
+    }
+
+    /** Writes this model to the given file in the frozen format of MappedLanguageModel, which
+     *  serves it read-only, straight from the mapped file. The windows are written in the
+     *  same order as save writes them. */
+    public void freeze(String fileName) throws IOException {
+        finalizeAll();
+        int size = getContextCount();
+        String[] windows = Arrays.copyOf(stringWindows(), size);
+        Distribution[] distributions = new Distribution[size];
+        int i = 0;
+        for (; i < size && windows[i] != null; i++) {
+            distributions[i] = getWindow(windows[i]);
+        }
+        if (packedMap != null) {
+            for (int j = 0; j < packedMap.getSize(); j++) {
+                windows[i] = unpack(packedMap.keyAt(j));
+                distributions[i++] = packedMap.valueAt(j);
+            }
+        }
+        MappedLanguageModel.write(fileName, windowLength, windows, distributions);
+    }
+
+    // Adds a loaded window and its distribution (whose characters are given) to this model.
+    private void putLoaded(char[] window, char[] symbols, Distribution probs) {
+        long key = 0;
+        if (alphabet != null) {
+            // Every character of the corpus is in the alphabet, also those that are only
+            // at the end of a window
+            for (int i = 0; i < symbols.length; i++) {
+                if (alphabet.add(symbols[i]) == 0 && packedMap != null) {
+                    unpackKeys();
+                }
+            }
+        }
+        if (packedMap != null) {
+            for (int i = 0; i < window.length && packedMap != null; i++) {
+                int code = alphabet.add(window[i]);
+                if (code == 0) {
+                    unpackKeys();
+                }
+                key = roll(key, code);
+            }
+        }
+        if (packedMap != null) {
+            packedMap.put(key, probs);
+        } else {
+            putWindow(new String(window), probs);
+        }
+        queue(probs);
+    }
+
+    // Writes a window and its distribution to the given model file.
+    private static void writeContext(DataOutputStream out, String window, Distribution probs) throws IOException {
+        for (int i = 0; i < window.length(); i++) {
+            writeVarint(out, window.charAt(i));
+        }
+        CharData[] arr = probs.toArray();
+        writeVarint(out, arr.length);
+        int previous = 0;
+        for (int i = 0; i < arr.length; i++) {
+            writeVarint(out, zigzagEncode(arr[i].chr - previous));
+            writeVarint(out, arr[i].count);
+            previous = arr[i].chr;
+        }
+    }
+
+    // Writes the given non-negative number in 7-bit groups, low group first. The high
+    // bit of each byte tells whether more groups follow.
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    // Reads a number written by writeVarint.
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed language model file");
+    }
+
+    // Maps signed numbers to non-negative numbers: 0, -1, 1, -2, 2 ... to 0, 1, 2, 3, 4 ...
+    private static int zigzagEncode(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int zigzagDecode(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
     /** Returns a string representing the map of this language model. */
 	public String toString() {
+		finalizeAll();
 		StringBuilder str = new StringBuilder();
 		for (String key : CharDataMap.keySet()) {
-			List keyProbs = CharDataMap.get(key);
+			Distribution keyProbs = CharDataMap.get(key);
 			str.append(key + " : " + keyProbs + "\n");
 		}
+		if (contextTrie != null) {
+			String[] windows = contextTrie.windows();
+			for (int i = 0; i < windows.length; i++) {
+				str.append(windows[i] + " : " + contextTrie.valueAt(i) + "\n");
+			}
+		}
+		if (packedMap != null) {
+			for (int i = 0; i < packedMap.getSize(); i++) {
+				str.append(unpack(packedMap.keyAt(i)) + " : " + packedMap.valueAt(i) + "\n");
+			}
+		}
 		return str.toString();
 	}
 
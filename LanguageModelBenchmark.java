@@ -0,0 +1,456 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/** Measures the speed of LanguageModel and List (the testers only check correctness).
+ *  Usage: java LanguageModelBenchmark [train | getRandomChar | update | generate | memory | sketch | concurrent | snapshot | metrics | all] [lengths...]
+ *  For each benchmark, reports the throughput, the time per operation, the bytes allocated
+ *  per operation and per second, and the number of garbage collections, like the JMH
+ *  gc profiler does. Each benchmark is warmed up before it is measured.
+ *  The generate benchmark takes the text lengths to generate as extra arguments
+ *  (by default 1000, 100000 and 1000000). The memory benchmark compares the bytes used to
+ *  store the windows of a model in CharDataMap, in a ContextTrie, and as packed keys.
+ *  The sketch benchmark compares the counts of SketchLanguageModel with exact counts.
+ *  The concurrent benchmark trains documents from several threads, into a LanguageModel
+ *  behind a lock and into a ConcurrentLanguageModel (its B/op only counts the main thread).
+ *  The snapshot benchmark compares a full snapshot of a model with a snapshot taken after
+ *  training one more document. The metrics benchmark trains and generates with the metrics
+ *  of the model off and on. */
+public class LanguageModelBenchmark {
+
+    // How long each benchmark is warmed up, and then measured, in milliseconds
+    private static final long WARMUP_MILLIS = 1000;
+    private static final long MEASURE_MILLIS = 2000;
+
+    // The corpora used by the train benchmarks
+    private static final String[] CORPORA = {"shakespeareinlove.txt", "originofspecies.txt"};
+
+    // Keeps the results of the benchmarks, so the JIT can't remove the measured code
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        String benchmark = (args.length > 0) ? args[0] : "all";
+        System.out.println(String.format("%-40s %12s %12s %12s %12s %6s",
+                "Benchmark", "ops/s", "ns/op", "B/op", "MB/s alloc", "gc"));
+        switch (benchmark) {
+            case "train":
+                benchmarkTrain();
+                break;
+            case "getRandomChar":
+                benchmarkGetRandomChar();
+                break;
+            case "update":
+                benchmarkUpdate();
+                break;
+            case "generate":
+                benchmarkGenerate(lengths(args));
+                break;
+            case "memory":
+                benchmarkMemory();
+                break;
+            case "sketch":
+                benchmarkSketch();
+                break;
+            case "concurrent":
+                benchmarkConcurrent();
+                break;
+            case "snapshot":
+                benchmarkSnapshot();
+                break;
+            case "metrics":
+                benchmarkMetrics();
+                break;
+            case "all":
+                benchmarkTrain();
+                benchmarkGetRandomChar();
+                benchmarkUpdate();
+                benchmarkGenerate(lengths(args));
+                benchmarkMemory();
+                benchmarkSketch();
+                benchmarkConcurrent();
+                benchmarkSnapshot();
+                benchmarkMetrics();
+                break;
+            default:
+                System.out.println("Unknown benchmark: " + benchmark);
+                break;
+        }
+    }
+
+    // Trains a model on each corpus, with window lengths 1 to 10.
+    private static void benchmarkTrain() {
+        for (int i = 0; i < CORPORA.length; i++) {
+            final String corpus = CORPORA[i];
+            for (int windowLength = 1; windowLength <= 10; windowLength++) {
+                final int length = windowLength;
+                run("train " + corpus + " w=" + windowLength, new Runnable() {
+                    public void run() {
+                        LanguageModel model = new LanguageModel(length, 20);
+                        model.train(corpus);
+                        sink += model.CharDataMap.size();
+                    }
+                });
+            }
+        }
+    }
+
+    // Samples a distribution of 3 characters, and a distribution of 64 characters.
+    private static void benchmarkGetRandomChar() {
+        final LanguageModel model = new LanguageModel(1, 20);
+        final List small = listOf("aab");
+        final List wide = new List();
+        for (int i = 0; i < 64; i++) {
+            for (int j = 0; j <= i % 5; j++) {
+                wide.update((char) ('0' + i));
+            }
+        }
+        model.calculateProbabilities(small);
+        model.calculateProbabilities(wide);
+        run("getRandomChar small (3)", new Runnable() {
+            public void run() {
+                sink += model.getRandomChar(small);
+            }
+        });
+        run("getRandomChar wide (64)", new Runnable() {
+            public void run() {
+                sink += model.getRandomChar(wide);
+            }
+        });
+    }
+
+    // Updates a list of 26 characters with a character from its beginning, and from its end,
+    // in each list order. Then trains models with short windows (long lists) in each order.
+    // Then updates a CharDistribution of 64 characters with its last character, in the sparse
+    // and the dense form, and trains a model with compact distributions.
+    private static void benchmarkUpdate() {
+        String[] names = {"", " transpose", " frequency"};
+        int[] orders = {List.INSERTION_ORDER, List.TRANSPOSE, List.FREQUENCY_ORDER};
+        for (int i = 0; i < orders.length; i++) {
+            final List list = listOf("abcdefghijklmnopqrstuvwxyz");
+            list.setOrder(orders[i]);
+            run("List.update first" + names[i], new Runnable() {
+                public void run() {
+                    list.update('a');
+                }
+            });
+            run("List.update last" + names[i], new Runnable() {
+                public void run() {
+                    list.update('z');
+                }
+            });
+        }
+        for (int i = 0; i < orders.length; i++) {
+            final int order = orders[i];
+            run("train originofspecies.txt w=2" + names[i], new Runnable() {
+                public void run() {
+                    LanguageModel model = new LanguageModel(2, 20);
+                    model.setListOrder(order);
+                    model.train("originofspecies.txt");
+                    sink += model.getContextCount();
+                }
+            });
+        }
+        Alphabet alphabet = new Alphabet();
+        final CharDistribution sparse = new CharDistribution();
+        final CharDistribution dense = new CharDistribution(alphabet);
+        for (int i = 0; i < 64; i++) {
+            alphabet.add((char) ('0' + i));
+            sparse.update((char) ('0' + i));
+            dense.update((char) ('0' + i));
+        }
+        run("CharDistribution.update last (64)", new Runnable() {
+            public void run() {
+                sparse.update('0');
+            }
+        });
+        run("CharDistribution.update last (64) dense", new Runnable() {
+            public void run() {
+                dense.update('0');
+            }
+        });
+        run("train originofspecies.txt w=2 compact", new Runnable() {
+            public void run() {
+                LanguageModel model = new LanguageModel(2, 20);
+                model.setCompactDistributions(true);
+                model.train("originofspecies.txt");
+                sink += model.getContextCount();
+            }
+        });
+    }
+
+    // Generates texts of the given lengths from a model of originofspecies.txt.
+    private static void benchmarkGenerate(int[] lengths) {
+        final LanguageModel model = new LanguageModel(7, 20);
+        model.train("originofspecies.txt");
+        model.finalizeAll();
+        for (int i = 0; i < lengths.length; i++) {
+            final int length = lengths[i];
+            run("generate " + length, new Runnable() {
+                public void run() {
+                    sink += model.generate("Natural", length).length();
+                }
+            });
+        }
+    }
+
+    // Prints the bytes used to store the windows of models of originofspecies.txt, with
+    // window lengths 1 to 10, in each context store.
+    private static void benchmarkMemory() {
+        System.out.println(String.format("%-40s %12s %12s %12s %12s", "Context store (originofspecies.txt)",
+                "windows", "HashMap B", "trie B", "packed B"));
+        for (int windowLength = 1; windowLength <= 10; windowLength++) {
+            long[] bytes = new long[3];
+            int windows = 0;
+            for (int store = 0; store < 3; store++) {
+                LanguageModel model = new LanguageModel(windowLength, 20);
+                model.setContextTrie(store == 1);
+                model.setPackedKeys(store == 2);
+                model.setCompactDistributions(true);
+                model.train("originofspecies.txt");
+                windows = model.getContextCount();
+                bytes[store] = model.isPackedKeys() || store < 2 ? model.getContextMemoryBytes() : -1;
+            }
+            System.out.println(String.format("%-40s %12d %12d %12d %12s", "w=" + windowLength, windows,
+                    bytes[0], bytes[1], bytes[2] < 0 ? "-" : Long.toString(bytes[2])));
+        }
+    }
+
+    // For each corpus and window length, trains an exact model, and approximate models that
+    // get 1/4 and 1/16 of its memory. Prints, over all the (window, character) pairs of the
+    // corpus: the fraction whose estimate is exact, the mean absolute and relative errors of
+    // the estimates, and the fraction of the windows of the corpus (weighted by their counts)
+    // that the heavy hitter table kept, so they can be sampled.
+    private static void benchmarkSketch() {
+        System.out.println(String.format("%-40s %12s %12s %9s %9s %9s %9s", "Sketch vs exact counts",
+                "exact B", "sketch B", "exact %", "mean err", "rel err", "kept %"));
+        int[] windowLengths = {3, 5, 7};
+        for (int i = 0; i < CORPORA.length; i++) {
+            for (int j = 0; j < windowLengths.length; j++) {
+                LanguageModel exact = new LanguageModel(windowLengths[j], 20);
+                exact.setCompactDistributions(true);
+                exact.train(CORPORA[i]);
+                long exactBytes = exact.getMemoryBytes();
+                for (int ratio = 4; ratio <= 16; ratio *= 4) {
+                    SketchLanguageModel sketch = new SketchLanguageModel(windowLengths[j], 20, exactBytes / ratio);
+                    sketch.train(CORPORA[i]);
+                    long pairs = 0;
+                    long exactPairs = 0;
+                    double error = 0;
+                    double relativeError = 0;
+                    long total = 0;
+                    long kept = 0;
+                    for (Map.Entry<String, Distribution> entry : exact.CharDataMap.entrySet()) {
+                        CharData[] arr = entry.getValue().toArray();
+                        int windowCount = 0;
+                        for (int k = 0; k < arr.length; k++) {
+                            int estimate = sketch.estimate(entry.getKey(), arr[k].chr);
+                            pairs++;
+                            exactPairs += (estimate == arr[k].count) ? 1 : 0;
+                            error += estimate - arr[k].count;
+                            relativeError += (double) (estimate - arr[k].count) / arr[k].count;
+                            windowCount += arr[k].count;
+                        }
+                        total += windowCount;
+                        kept += sketch.contains(entry.getKey()) ? windowCount : 0;
+                    }
+                    System.out.println(String.format("%-40s %12d %12d %9.1f %9.2f %9.2f %9.1f",
+                            CORPORA[i] + " w=" + windowLengths[j] + " 1/" + ratio, exactBytes,
+                            sketch.memoryBytes(), 100.0 * exactPairs / pairs, error / pairs,
+                            relativeError / pairs, 100.0 * kept / total));
+                }
+            }
+        }
+    }
+
+    // Trains the 1000 character documents of originofspecies.txt, with window length 5, from
+    // 1, 2 and 4 threads: into a LanguageModel that the threads lock, and into a
+    // ConcurrentLanguageModel.
+    private static void benchmarkConcurrent() {
+        String corpus;
+        try {
+            corpus = new String(Files.readAllBytes(Paths.get("originofspecies.txt")), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read originofspecies.txt", e);
+        }
+        final String[] documents = new String[(corpus.length() + 999) / 1000];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = corpus.substring(1000 * i, Math.min(1000 * (i + 1), corpus.length()));
+        }
+        int[] threadCounts = {1, 2, 4};
+        for (int i = 0; i < threadCounts.length; i++) {
+            final int threads = threadCounts[i];
+            run("ingest locked LanguageModel t=" + threads, new Runnable() {
+                public void run() {
+                    final LanguageModel model = new LanguageModel(5, 20);
+                    trainFromThreads(documents, threads, new Consumer<String>() {
+                        public void accept(String document) {
+                            synchronized (model) {
+                                model.trainText(document);
+                            }
+                        }
+                    });
+                    sink += model.getContextCount();
+                }
+            });
+            run("ingest ConcurrentLanguageModel t=" + threads, new Runnable() {
+                public void run() {
+                    final ConcurrentLanguageModel model = new ConcurrentLanguageModel(5);
+                    trainFromThreads(documents, threads, new Consumer<String>() {
+                        public void accept(String document) {
+                            model.trainText(document);
+                        }
+                    });
+                    sink += model.getContextCount();
+                }
+            });
+        }
+    }
+
+    // Takes a snapshot of a model of originofspecies.txt with window length 7: a full one,
+    // and one after each 1000 character document that the model trains.
+    private static void benchmarkSnapshot() {
+        final LanguageModel model = new LanguageModel(7, 20);
+        model.train("originofspecies.txt");
+        model.finalizeAll();
+        final String document = "It is interesting to contemplate an entangled bank, clothed with many plants of "
+                + "many kinds, with birds singing on the bushes, with various insects flitting about, and with "
+                + "worms crawling through the damp earth, and to reflect that these elaborately constructed "
+                + "forms, so different from each other, and dependent on each other in so complex a manner, "
+                + "have all been produced by laws acting around us.";
+        run("snapshot full w=7", new Runnable() {
+            public void run() {
+                // Changing the sampler type makes the next snapshot a full one
+                model.setSamplerType(LanguageModel.WALK_SAMPLER);
+                sink += model.snapshot().getSize();
+            }
+        });
+        run("trainText + snapshot w=7", new Runnable() {
+            public void run() {
+                model.trainText(document);
+                sink += model.snapshot().getSize();
+            }
+        });
+        run("trainText w=7", new Runnable() {
+            public void run() {
+                model.trainText(document);
+                sink += model.getContextCount();
+            }
+        });
+    }
+
+    // Trains a model of originofspecies.txt with window length 7, and generates 1000
+    // characters from it, with its metrics off and on.
+    private static void benchmarkMetrics() {
+        for (int enabled = 0; enabled < 2; enabled++) {
+            final boolean metrics = enabled == 1;
+            final String suffix = metrics ? " metrics" : "";
+            run("train originofspecies.txt w=7" + suffix, new Runnable() {
+                public void run() {
+                    LanguageModel model = new LanguageModel(7, 20);
+                    model.setMetricsEnabled(metrics);
+                    model.train("originofspecies.txt");
+                    sink += model.getContextCount();
+                }
+            });
+            final LanguageModel model = new LanguageModel(7, 20);
+            model.train("originofspecies.txt");
+            model.finalizeAll();
+            model.setMetricsEnabled(metrics);
+            run("generate 1000" + suffix, new Runnable() {
+                public void run() {
+                    sink += model.generate("Natural", 1000).length();
+                }
+            });
+        }
+    }
+
+    // Gives the given documents to the given trainer, from the given number of threads, and
+    // waits for them to finish.
+    private static void trainFromThreads(final String[] documents, int threads, final Consumer<String> trainer) {
+        final AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = next.getAndIncrement(); j < documents.length; j = next.getAndIncrement()) {
+                        trainer.accept(documents[j]);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        try {
+            for (int i = 0; i < threads; i++) {
+                workers[i].join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Warms up and measures the given operation, and prints one line of results.
+    private static void run(String name, Runnable operation) {
+        repeat(operation, WARMUP_MILLIS);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long gcBefore = gcCount();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long ops = repeat(operation, MEASURE_MILLIS);
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+        long gc = gcCount() - gcBefore;
+        System.out.println(String.format("%-40s %12.1f %12.1f %12.1f %12.1f %6d",
+                name, ops * 1e9 / elapsed, (double) elapsed / ops, (double) bytes / ops,
+                bytes * 1e3 / elapsed, gc));
+    }
+
+    // Runs the given operation over and over, for at least the given time (and at least
+    // once). Returns the number of times it ran.
+    private static long repeat(Runnable operation, long millis) {
+        long end = System.nanoTime() + millis * 1000000;
+        long ops = 0;
+        do {
+            operation.run();
+            ops++;
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    // Returns the number of garbage collections since the JVM started.
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    // Returns a list updated with the characters of the given word, from last to first.
+    private static List listOf(String word) {
+        List list = new List();
+        for (int i = word.length() - 1; i >= 0; i--) {
+            list.update(word.charAt(i));
+        }
+        return list;
+    }
+
+    // Returns the text lengths given in the arguments, or the default lengths.
+    private static int[] lengths(String[] args) {
+        if (args.length < 2) {
+            return new int[] {1000, 100000, 1000000};
+        }
+        int[] lengths = new int[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            lengths[i - 1] = Integer.parseInt(args[i]);
+        }
+        return lengths;
+    }
+}
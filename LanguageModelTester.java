@@ -1,6 +1,20 @@
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class LanguageModelTester {
         public static void main(String[] args) throws Exception {
@@ -19,6 +33,75 @@ public class LanguageModelTester {
             case "generate":
                 result = testGenerate();
                 break;
+            case "packedKeys":
+                result = testPackedKeys();
+                break;
+            case "trainParallel":
+                result = testTrainParallel();
+                break;
+            case "trainIncremental":
+                result = testTrainIncremental();
+                break;
+            case "aliasSampler":
+                result = testAliasSampler();
+                break;
+            case "cumulativeSampler":
+                result = testCumulativeSampler();
+                break;
+            case "charDistribution":
+                result = testCharDistribution();
+                break;
+            case "generateStream":
+                result = testGenerateStream();
+                break;
+            case "generateLength":
+                result = testGenerateLength();
+                break;
+            case "generateBatch":
+                result = testGenerateBatch();
+                break;
+            case "saveLoad":
+                result = testSaveLoad();
+                break;
+            case "mapped":
+                result = testMapped();
+                break;
+            case "backoff":
+                result = testBackoff();
+                break;
+            case "contextTrie":
+                result = testContextTrie();
+                break;
+            case "prune":
+                result = testPrune();
+                break;
+            case "sketch":
+                result = testSketch();
+                break;
+            case "merge":
+                result = testMerge();
+                break;
+            case "listOrder":
+                result = testListOrder();
+                break;
+            case "denseDistribution":
+                result = testDenseDistribution();
+                break;
+            case "concurrent":
+                result = testConcurrent();
+                break;
+            case "snapshot":
+                result = testSnapshot();
+                break;
+            case "metrics":
+                result = testMetrics();
+                break;
+            case "corpusReader":
+                result = testCorpusReader();
+                break;
+            case "contextTable":
+                result = testContextTable();
+                break;
             case "all":
                 result = testCalculateProbabilities();
                 result = result && testGetRandomChar();
@@ -166,6 +249,1027 @@ public class LanguageModelTester {
     }
     
 
+    // Test method for packed keys: a packed model is the same as a String model, and falls back
+    // to String keys when its alphabet gets more characters than a code can hold
+    public static boolean testPackedKeys() {
+        boolean result = true;
+        int [] windowLengths = {1, 3, LanguageModel.MAX_PACKED_WINDOW, LanguageModel.MAX_PACKED_WINDOW + 1};
+        StringBuilder document = new StringBuilder();
+        for (char c = '\u0100'; c < '\u0100' + 300; c++) {
+            document.append("ab").append(c);
+        }
+        for (int i = 0; i < windowLengths.length; i++) {
+            LanguageModel strings = new LanguageModel(windowLengths[i], 20);
+            strings.train("shakespeareinlove.txt");
+            LanguageModel packed = new LanguageModel(windowLengths[i], 20);
+            packed.setPackedKeys(true);
+            packed.train("shakespeareinlove.txt");
+            // A packed model lists its windows in the order they were added, and a String model
+            // in the order of its HashMap: the lines are the same
+            boolean res = packed.isPackedKeys() == (windowLengths[i] <= LanguageModel.MAX_PACKED_WINDOW)
+                    && sortedLines(strings.toString()).equals(sortedLines(packed.toString()))
+                    && strings.generate("WILL: Shall I", 1000).equals(packed.generate("WILL: Shall I", 1000));
+            // More than Alphabet.CAPACITY characters: the model goes on with String keys
+            strings.trainText(document);
+            packed.trainText(document);
+            res = res && !packed.isPackedKeys()
+                    && strings.getContextCount() == packed.getContextCount()
+                    && strings.toString().equals(packed.toString())
+                    && strings.generate("WILL: Shall I", 1000).equals(packed.generate("WILL: Shall I", 1000));
+            if (!res) {
+                System.out.println("PackedKeys Test failed with windowLength = " + windowLengths[i]);
+            }
+            result = result && res;
+        }
+        return result;
+    }
+
+    // Test method for the trainParallel() method
+    public static boolean testTrainParallel() throws Exception {
+        boolean result = true;
+        int [] windowLengths = {1, 2, 5, 9};
+        for (int i = 0; i < windowLengths.length; i++) {
+            for (int j = 0; j < 2; j++) {
+                boolean packed = (j == 1);
+                LanguageModel sequential = new LanguageModel(windowLengths[i], 20);
+                sequential.setPackedKeys(packed);
+                sequential.train("shakespeareinlove.txt");
+                LanguageModel parallel = new LanguageModel(windowLengths[i], 20);
+                parallel.setPackedKeys(packed);
+                parallel.trainParallel("shakespeareinlove.txt", 4);
+                boolean res = sequential.toString().equals(parallel.toString())
+                        && sequential.generate("Will", 500).equals(parallel.generate("Will", 500));
+                if (!res) {
+                    System.out.println("TrainParallel Test failed with windowLength = " + windowLengths[i] + ", packed keys = " + packed);
+                }
+                result = result && res;
+            }
+        }
+        // Files that are empty, or not longer than a window, give an empty model
+        String [] contents = {"", "ab", "abc", "ab \n"};
+        for (int i = 0; i < contents.length; i++) {
+            File file = File.createTempFile("short", ".txt");
+            file.deleteOnExit();
+            BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+            bw.write(contents[i]);
+            bw.close();
+            for (int j = 0; j < 2; j++) {
+                LanguageModel sequential = new LanguageModel(3, 20);
+                sequential.setPackedKeys(j == 1);
+                sequential.train(file.getPath());
+                LanguageModel parallel = new LanguageModel(3, 20);
+                parallel.setPackedKeys(j == 1);
+                parallel.trainParallel(file.getPath(), 4);
+                boolean res = parallel.getContextCount() == 0 && sequential.toString().equals(parallel.toString());
+                if (!res) {
+                    System.out.println("TrainParallel Test failed with the file \"" + contents[i] + "\", packed keys = " + (j == 1));
+                }
+                result = result && res;
+            }
+        }
+        return result;
+    }
+
+    // Test method for the trainText() and train(Reader) methods
+    public static boolean testTrainIncremental() throws Exception {
+        String document = "To be, or not to be, that is the question: whether 'tis nobler in the mind to suffer";
+        LanguageModel fromFile = new LanguageModel(3, 20);
+        fromFile.train("shakespeareinlove.txt");
+        fromFile.trainText(document);
+        LanguageModel fromReader = new LanguageModel(3, 20);
+        fromReader.train(new StringReader(document));
+        fromReader.trainText(new StringBuilder(document));
+        boolean res = true;
+        LanguageModel [] models = {fromFile, fromReader};
+        for (int i = 0; i < models.length; i++) {
+            String before = models[i].toString();
+            for (Distribution probs : models[i].CharDataMap.values()) {
+                models[i].calculateProbabilities(probs);
+            }
+            boolean temp = before.equals(models[i].toString());
+            if (!temp) {
+                System.out.println("TrainIncremental Test " + i + " failed: the probabilities of a changed window were not computed");
+            }
+            res = res && temp;
+        }
+        res = res && fromReader.CharDataMap.get("be,").get(0).count == 4;
+        // A list that is sampled (and computed lazily) between trainings is pending only once
+        LanguageModel model = new LanguageModel(3, 20);
+        model.trainText(document);
+        int pending = model.getPendingCount();
+        for (int i = 0; i < 3; i++) {
+            model.getRandomChar(model.CharDataMap.get("be,"));
+            model.trainText(document);
+            boolean temp = model.getPendingCount() == pending;
+            if (!temp) {
+                System.out.println("TrainIncremental Test failed: " + model.getPendingCount() + " pending lists instead of " + pending);
+            }
+            res = res && temp;
+        }
+        model.finalizeAll();
+        res = res && model.getPendingCount() == 0 && !model.CharDataMap.get("be,").isQueued();
+        model.trainText(document);
+        res = res && model.getPendingCount() == pending;
+        return res;
+    }
+
+    // Test method for getRandomChar() with an alias table
+    public static boolean testAliasSampler() {
+        boolean result = true;
+        LanguageModel model = new LanguageModel(3, 20);
+        model.setSamplerType(LanguageModel.ALIAS_SAMPLER);
+        String [] words = {"home","worker","william_shakespeare","aaaaaaaaab"};
+        int samples = 200000;
+        for (int i = 0; i < words.length; i++) {
+            List list = new List();
+            for (int j = 0; j < words[i].length(); j++) {
+                list.update(words[i].charAt(words[i].length() - 1 - j));
+            }
+            model.calculateProbabilities(list);
+            int [] counts = new int[128];
+            for (int j = 0; j < samples; j++) {
+                counts[model.getRandomChar(list)]++;
+            }
+            CharData [] arr = list.toArray();
+            for (int j = 0; j < arr.length; j++) {
+                double frequency = (double) counts[arr[j].chr] / samples;
+                boolean temp = Math.abs(frequency - arr[j].p) < 0.005;
+                if (!temp) {
+                    System.out.println("Word: " + words[i] + ", Char: " + arr[j].chr);
+                    System.out.println("Expected probability: " + arr[j].p + ", Actual frequency: " + frequency);
+                }
+                result = result && temp;
+            }
+        }
+        return result;
+    }
+
+    // Test method for getRandomChar() and generate() with a cumulative table:
+    // the results must be the same as the results of walking the lists
+    public static boolean testCumulativeSampler() {
+        LanguageModel walk = new LanguageModel(3, 20);
+        LanguageModel table = new LanguageModel(3, 20);
+        table.setSamplerType(LanguageModel.CUMULATIVE_SAMPLER);
+        boolean result = true;
+        String [] words = {"home","worker","william_shakespeare"};
+        for (int i = 0; i < words.length; i++) {
+            List list = new List();
+            for (int j = 0; j < words[i].length(); j++) {
+                list.update(words[i].charAt(words[i].length() - 1 - j));
+            }
+            table.calculateProbabilities(list);
+            for (int j = 0; j < 1000; j++) {
+                result = result && walk.getRandomChar(list) == table.getRandomChar(list);
+            }
+        }
+        if (!result) {
+            System.out.println("CumulativeSampler Test failed: getRandomChar is not the same as a walk");
+        }
+        LanguageModel languageModel = new LanguageModel(7, 20);
+        languageModel.setSamplerType(LanguageModel.CUMULATIVE_SAMPLER);
+        languageModel.train("originofspecies.txt");
+        String generatedText = languageModel.generate("Natural", 172);
+        String expectedGeneratedText = "Natural selection, how is it possible, generally much changed\n"+
+        "simultaneous rotation, when the importance of Batrachians, 393.\n"+
+        "  Batrachians (frogs, toads, newts) have to modified ";
+        boolean res = stringEqualsNoSpaces(generatedText, expectedGeneratedText);
+        if (!res) {
+            System.out.println("Expected: " + expectedGeneratedText);
+            System.out.println("Actual: " + generatedText);
+        }
+        return result && res;
+    }
+
+    // Test method for CharDistribution: it must behave like a List
+    public static boolean testCharDistribution() {
+        boolean result = true;
+        LanguageModel model = new LanguageModel(3, 20);
+        String [] words = {"computer_science","william_shakespeare","aaaaaaaaab"};
+        for (int i = 0; i < words.length; i++) {
+            List list = new List();
+            CharDistribution distribution = new CharDistribution();
+            for (int j = 0; j < words[i].length(); j++) {
+                list.update(words[i].charAt(words[i].length() - 1 - j));
+                distribution.update(words[i].charAt(words[i].length() - 1 - j));
+            }
+            model.calculateProbabilities(list);
+            model.calculateProbabilities(distribution);
+            boolean res = list.toString().equals(distribution.toString())
+                    && list.getSize() == distribution.getSize()
+                    && list.indexOf('a') == distribution.indexOf('a')
+                    && list.indexOf('#') == distribution.indexOf('#')
+                    && list.get(1).chr == distribution.get(1).chr
+                    && list.get(1).count == distribution.get(1).count;
+            if (!res) {
+                System.out.println("Expected: " + list);
+                System.out.println("Actual: " + distribution);
+            }
+            result = result && res;
+        }
+        LanguageModel lists = new LanguageModel(4, 20);
+        lists.train("shakespeareinlove.txt");
+        LanguageModel arrays = new LanguageModel(4, 20);
+        arrays.setCompactDistributions(true);
+        arrays.train("shakespeareinlove.txt");
+        boolean res = lists.toString().equals(arrays.toString())
+                && lists.generate("Will", 500).equals(arrays.generate("Will", 500));
+        if (!res) {
+            System.out.println("CharDistribution Test failed: the model is not the same as with lists");
+        }
+        return result && res;
+    }
+
+    // Test method for the streaming generate() method
+    public static boolean testGenerateStream() throws Exception {
+        boolean result = true;
+        int [] chunkSizes = {1, 7, 100, 5000};
+        for (int i = 0; i < chunkSizes.length; i++) {
+            LanguageModel model = new LanguageModel(4, 20);
+            model.train("shakespeareinlove.txt");
+            String expected = model.generate("Will", 2000);
+            model = new LanguageModel(4, 20);
+            model.train("shakespeareinlove.txt");
+            StringBuilder out = new StringBuilder();
+            long generated = model.generate("Will", 2000, out, chunkSizes[i], null);
+            boolean res = out.toString().equals(expected) && generated == expected.length() - 4;
+            if (!res) {
+                System.out.println("GenerateStream Test failed with chunk size " + chunkSizes[i]);
+            }
+            result = result && res;
+        }
+        // An unbounded text stops when it is cancelled
+        LanguageModel model = new LanguageModel(4, 20);
+        model.train("shakespeareinlove.txt");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        model.generate("Will", LanguageModel.UNBOUNDED, bytes, 64, () -> bytes.size() >= 10000);
+        boolean res = bytes.size() >= 10000 && bytes.size() < 11000;
+        if (!res) {
+            System.out.println("GenerateStream Test failed: cancelled after " + bytes.size() + " bytes");
+        }
+        // An initial text shorter than the window reaches the stream as it is
+        ByteArrayOutputStream shortText = new ByteArrayOutputStream();
+        long generated = model.generate("W\u00e9", 100, shortText, 64, null);
+        boolean written = generated == 0 && shortText.toString("UTF-8").equals("W\u00e9");
+        if (!written) {
+            System.out.println("GenerateStream Test failed: the short initial text was not written");
+        }
+        return result && res && written;
+    }
+
+    // Test method for the batch generate() method
+    public static boolean testGenerateBatch() throws Exception {
+        LanguageModel model = new LanguageModel(5, 20);
+        model.setPackedKeys(true);
+        model.train("shakespeareinlove.txt");
+        String [] initialTexts = {"ROMEO", "JULIA", "Will ", "WILL:", "The q"};
+        GenerationRequest [] requests = new GenerationRequest[40];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new GenerationRequest(initialTexts[i % initialTexts.length], 300 + 10 * i, i / 2);
+        }
+        String [] single = model.generate(requests, 1);
+        String [] parallel = model.generate(requests, 4);
+        boolean result = true;
+        for (int i = 0; i < requests.length; i++) {
+            String expected = model.generate(requests[i].getInitialText(), requests[i].getTextLength(),
+                                             new SplittableRandom(requests[i].getSeed()));
+            boolean res = expected.equals(single[i]) && expected.equals(parallel[i]);
+            if (!res) {
+                System.out.println("GenerateBatch Test failed for request " + requests[i]);
+            }
+            result = result && res;
+        }
+        // The samplers dropped by setSamplerType are built before the threads start
+        model.setSamplerType(LanguageModel.ALIAS_SAMPLER);
+        model.generate(requests, 4);
+        for (Distribution probs : distributionsOf(model)) {
+            result = result && probs.getSampler() instanceof AliasTable;
+        }
+        return result;
+    }
+
+    // Test method for the length of generated texts, in every kind of model: a request for a
+    // very long text that stops early only allocates what it generates, a text that could not
+    // fit in an array is rejected, and a text that grows as it is generated starts with the
+    // shorter text of the same seed
+    public static boolean testGenerateLength() throws Exception {
+        boolean res = true;
+        File file = File.createTempFile("short", ".txt");
+        file.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+        bw.write("abcdef");
+        bw.close();
+        LanguageModel model = new LanguageModel(3, 20);
+        model.train(file.getPath());
+        File frozen = File.createTempFile("model", ".lmf");
+        frozen.deleteOnExit();
+        model.freeze(frozen.getPath());
+        MappedLanguageModel mapped = new MappedLanguageModel(frozen.getPath(), 20);
+        SketchLanguageModel sketch = new SketchLanguageModel(3, 20, 1 << 10, 4, 1 << 6);
+        sketch.train(file.getPath());
+        ModelSnapshot snapshot = model.snapshot();
+        int length = Integer.MAX_VALUE - 100;
+        res = res && model.generate("abc", length).equals("abcdef")
+                && mapped.generate("abc", length).equals("abcdef")
+                && sketch.generate("abc", length).equals("abcdef")
+                && snapshot.generate("abc", length, new SplittableRandom(1)).equals("abcdef");
+        BackoffLanguageModel backoff = new BackoffLanguageModel(3, 20);
+        backoff.train(file.getPath());
+        Object [] models = {model, mapped, sketch, snapshot, backoff};
+        for (int i = 0; i < models.length; i++) {
+            try {
+                if (models[i] instanceof LanguageModel) {
+                    ((LanguageModel) models[i]).generate("abc", Integer.MAX_VALUE);
+                } else if (models[i] instanceof MappedLanguageModel) {
+                    ((MappedLanguageModel) models[i]).generate("abc", Integer.MAX_VALUE);
+                } else if (models[i] instanceof SketchLanguageModel) {
+                    ((SketchLanguageModel) models[i]).generate("abc", Integer.MAX_VALUE);
+                } else if (models[i] instanceof ModelSnapshot) {
+                    ((ModelSnapshot) models[i]).generate("abc", Integer.MAX_VALUE, new SplittableRandom(1));
+                } else {
+                    ((BackoffLanguageModel) models[i]).generate("abc", Integer.MAX_VALUE);
+                }
+                System.out.println("GenerateLength Test failed: a text too long for an array was accepted by model " + i);
+                res = false;
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        model = new LanguageModel(3, 20);
+        model.train("shakespeareinlove.txt");
+        model.freeze(frozen.getPath());
+        mapped = new MappedLanguageModel(frozen.getPath(), 20);
+        sketch = new SketchLanguageModel(3, 20, 1 << 20, 4, 1 << 16);
+        sketch.train("shakespeareinlove.txt");
+        snapshot = model.snapshot();
+        backoff = new BackoffLanguageModel(3, 20);
+        backoff.train("shakespeareinlove.txt");
+        String [] shorter = {
+            model.generate("WILL", 3000, new SplittableRandom(7)),
+            mapped.generate("WILL", 3000, new SplittableRandom(7)),
+            sketch.generate("WILL", 3000, new SplittableRandom(7)),
+            snapshot.generate("WILL", 3000, new SplittableRandom(7)),
+            backoff.generate("WILL", 3000, new SplittableRandom(7))
+        };
+        String [] longer = {
+            model.generate("WILL", 30000, new SplittableRandom(7)),
+            mapped.generate("WILL", 30000, new SplittableRandom(7)),
+            sketch.generate("WILL", 30000, new SplittableRandom(7)),
+            snapshot.generate("WILL", 30000, new SplittableRandom(7)),
+            backoff.generate("WILL", 30000, new SplittableRandom(7))
+        };
+        for (int i = 0; i < shorter.length; i++) {
+            boolean temp = longer[i].startsWith(shorter[i]) && (shorter[i].length() < 3003 || longer[i].length() > 3003);
+            if (!temp) {
+                System.out.println("GenerateLength Test failed: model " + i + " generated a different long text");
+            }
+            res = res && temp;
+        }
+        res = res && longer[4].length() == 30003;
+        return res;
+    }
+
+    // Test method for the save() and load() methods
+    public static boolean testSaveLoad() throws Exception {
+        boolean result = true;
+        int [] windowLengths = {2, 7, 10};
+        for (int i = 0; i < windowLengths.length; i++) {
+            for (int j = 0; j < 2; j++) {
+                LanguageModel model = new LanguageModel(windowLengths[i], 20);
+                model.setPackedKeys(j == 1);
+                model.setCompactDistributions(j == 1);
+                model.train("shakespeareinlove.txt");
+                File file = File.createTempFile("model", ".lm");
+                file.deleteOnExit();
+                model.save(file.getPath());
+                LanguageModel loaded = LanguageModel.load(file.getPath(), 20);
+                boolean res = model.toString().equals(loaded.toString())
+                        && model.generate("WILL: Shall I", 1000).equals(loaded.generate("WILL: Shall I", 1000))
+                        && model.isPackedKeys() == loaded.isPackedKeys();
+                if (!res) {
+                    System.out.println("SaveLoad Test failed with windowLength = " + windowLengths[i] + ", packed = " + (j == 1));
+                }
+                result = result && res;
+            }
+        }
+        return result;
+    }
+
+    // Test method for MappedLanguageModel: a frozen model generates the same texts as the model
+    public static boolean testMapped() throws Exception {
+        boolean result = true;
+        int [] windowLengths = {2, 7, 10};
+        for (int i = 0; i < windowLengths.length; i++) {
+            for (int j = 0; j < 2; j++) {
+                LanguageModel model = new LanguageModel(windowLengths[i], 20);
+                model.setPackedKeys(j == 1);
+                model.setCompactDistributions(j == 1);
+                model.train("shakespeareinlove.txt");
+                File file = File.createTempFile("model", ".lmf");
+                file.deleteOnExit();
+                model.freeze(file.getPath());
+                MappedLanguageModel mapped = new MappedLanguageModel(file.getPath(), 20);
+                boolean res = mapped.getSize() == model.getContextCount()
+                        && model.generate("WILL: Shall I", 1000).equals(mapped.generate("WILL: Shall I", 1000))
+                        && model.generate("zzzzzzzzzzz", 10).equals(mapped.generate("zzzzzzzzzzz", 10));
+                if (!res) {
+                    System.out.println("Mapped Test failed with windowLength = " + windowLengths[i] + ", packed = " + (j == 1));
+                }
+                result = result && res;
+            }
+        }
+        return result;
+    }
+
+    // Test method for BackoffLanguageModel: while its longest windows were seen, a backoff model
+    // generates the same text as a LanguageModel, and it never stops early
+    public static boolean testBackoff() {
+        boolean result = true;
+        int [] maxOrders = {1, 3, 7, 10};
+        String [] initialTexts = {"WILL: Shall I", "zzzzzzzzzzz", ""};
+        for (int i = 0; i < maxOrders.length; i++) {
+            BackoffLanguageModel backoff = new BackoffLanguageModel(maxOrders[i], 20);
+            backoff.train("shakespeareinlove.txt");
+            for (int j = 0; j < initialTexts.length; j++) {
+                LanguageModel model = new LanguageModel(maxOrders[i], 20);
+                model.train("shakespeareinlove.txt");
+                String expected = model.generate(initialTexts[j], 1000);
+                String actual = backoff.generate(initialTexts[j], 1000, new Random(20));
+                int start = Math.min(initialTexts[j].length(), maxOrders[i]);
+                boolean res = actual.length() == start + 1000
+                        && (expected.length() < maxOrders[i] || actual.startsWith(expected));
+                if (!res) {
+                    System.out.println("Backoff Test failed with maxOrder = " + maxOrders[i] + ", initial text = " + initialTexts[j]);
+                    System.out.println("Expected: " + expected);
+                    System.out.println("Actual: " + actual);
+                }
+                result = result && res;
+            }
+        }
+        return result;
+    }
+
+    // Test method for the trie backend: it gives the same model as CharDataMap, in less memory
+    public static boolean testContextTrie() throws Exception {
+        boolean result = true;
+        int [] windowLengths = {2, 7, 10};
+        for (int i = 0; i < windowLengths.length; i++) {
+            LanguageModel model = new LanguageModel(windowLengths[i], 20);
+            model.train("shakespeareinlove.txt");
+            LanguageModel trie = new LanguageModel(windowLengths[i], 20);
+            trie.setContextTrie(true);
+            trie.train("shakespeareinlove.txt");
+            File file = File.createTempFile("model", ".lm");
+            file.deleteOnExit();
+            trie.save(file.getPath());
+            LanguageModel loaded = LanguageModel.load(file.getPath(), 20);
+            boolean res = trie.getContextCount() == model.getContextCount()
+                    && trie.contextTrie.get(model.CharDataMap.keySet().iterator().next()) != null
+                    && model.generate("WILL: Shall I", 1000).equals(trie.generate("WILL: Shall I", 1000))
+                    && loaded.isContextTrie() && loaded.toString().equals(trie.toString())
+                    && trie.getContextMemoryBytes() < model.getContextMemoryBytes();
+            if (!res) {
+                System.out.println("ContextTrie Test failed with windowLength = " + windowLengths[i]);
+            }
+            result = result && res;
+        }
+        return result;
+    }
+
+    // Test method for prune and compact
+    public static boolean testPrune() throws Exception {
+        boolean result = true;
+        for (int j = 0; j < 3; j++) {
+            LanguageModel model = new LanguageModel(7, 20);
+            model.setPackedKeys(j == 1);
+            model.setCompactDistributions(j == 1);
+            model.setContextTrie(j == 2);
+            model.train("shakespeareinlove.txt");
+            int windows = model.getContextCount();
+            int once = 0;
+            for (Distribution probs : distributionsOf(model)) {
+                once += (probs.getSize() == 1 && probs.get(0).count == 1) ? 1 : 0;
+            }
+            LanguageModel pruned = new LanguageModel(7, 20);
+            pruned.setPackedKeys(j == 1);
+            pruned.setCompactDistributions(j == 1);
+            pruned.setContextTrie(j == 2);
+            pruned.setPruning(2, 1);
+            pruned.train("shakespeareinlove.txt");
+            boolean res = model.prune(2, 1) == once && model.getContextCount() == windows - once
+                    && model.toString().equals(pruned.toString());
+            // Removes the rare characters, and computes the probabilities of their windows again
+            model.prune(1, 2);
+            model.finalizeAll();
+            for (Distribution probs : distributionsOf(model)) {
+                CharData[] arr = probs.toArray();
+                res = res && Math.abs(arr[arr.length - 1].cp - 1.0) < 1e-9;
+                for (int k = 0; k < arr.length; k++) {
+                    res = res && arr[k].count >= 2;
+                }
+            }
+            File file = File.createTempFile("model", ".lm");
+            file.deleteOnExit();
+            model.save(file.getPath());
+            res = res && LanguageModel.load(file.getPath(), 20).toString().equals(model.toString());
+            // Shrinks the model to half its size
+            long budget = pruned.getMemoryBytes() / 2;
+            res = res && pruned.compact(budget) > 0 && pruned.getMemoryBytes() <= budget
+                    && pruned.getContextCount() > 0;
+            if (!res) {
+                System.out.println("Prune Test failed with model type " + j);
+            }
+            result = result && res;
+        }
+        return result;
+    }
+
+    // Test method for SketchLanguageModel: estimates are never below the exact counts, memory
+    // does not grow, and every generated character followed its window in the corpus
+    public static boolean testSketch() {
+        LanguageModel model = new LanguageModel(3, 20);
+        model.train("shakespeareinlove.txt");
+        SketchLanguageModel sketch = new SketchLanguageModel(3, 20, 1 << 20, 4, 1 << 16);
+        long bytes = sketch.memoryBytes();
+        sketch.train("shakespeareinlove.txt");
+        boolean res = sketch.memoryBytes() == bytes && sketch.getContextCount() == model.getContextCount();
+        for (String window : model.CharDataMap.keySet()) {
+            CharData[] arr = model.CharDataMap.get(window).toArray();
+            for (int i = 0; i < arr.length; i++) {
+                res = res && sketch.estimate(window, arr[i].chr) >= arr[i].count;
+            }
+        }
+        String text = sketch.generate("WILL: Shall I", 1000);
+        res = res && text.length() == 1003;
+        for (int i = 3; i < text.length(); i++) {
+            Distribution probs = model.CharDataMap.get(text.substring(i - 3, i));
+            res = res && probs != null && probs.indexOf(text.charAt(i)) != -1;
+        }
+        // A small model keeps within its memory, and still generates real transitions
+        SketchLanguageModel small = new SketchLanguageModel(3, 20, 100000);
+        small.train("shakespeareinlove.txt");
+        res = res && small.memoryBytes() <= 100000 && small.getContextCount() > 0;
+        text = small.generate("the", 100);
+        for (int i = 3; i < text.length(); i++) {
+            Distribution probs = model.CharDataMap.get(text.substring(i - 3, i));
+            res = res && probs != null && probs.indexOf(text.charAt(i)) != -1;
+        }
+        if (!res) {
+            System.out.println("Sketch Test failed");
+        }
+        return res;
+    }
+
+    // Test method for merge: merging models trained on two corpora gives the model trained on
+    // both corpora, one after the other, whatever the settings of the merged models
+    public static boolean testMerge() {
+        boolean result = true;
+        int [] windowLengths = {3, 7};
+        for (int i = 0; i < windowLengths.length; i++) {
+            for (int j = 0; j < 4; j++) {
+                // j = 0: plain models, 1: packed keys and compact distributions, 2: tries,
+                // 3: a plain model and a packed model
+                LanguageModel first = newModel(windowLengths[i], j == 1, j == 2);
+                first.train("shakespeareinlove.txt");
+                LanguageModel second = newModel(windowLengths[i], j == 1 || j == 3, j == 2);
+                second.train("originofspecies.txt");
+                String secondText = second.toString();
+                LanguageModel expected = newModel(windowLengths[i], j == 1, j == 2);
+                expected.train("shakespeareinlove.txt");
+                expected.train("originofspecies.txt");
+                LanguageModel merged = LanguageModel.merge(new LanguageModel[] {first, second}, 20);
+                first.merge(second);
+                boolean res = merged.toString().equals(expected.toString())
+                        && first.toString().equals(expected.toString())
+                        && second.toString().equals(secondText)
+                        && merged.generate("Natural", 1000).equals(expected.generate("Natural", 1000));
+                if (!res) {
+                    System.out.println("Merge Test failed with windowLength = " + windowLengths[i] + ", case " + j);
+                }
+                result = result && res;
+            }
+        }
+        try {
+            LanguageModel.merge(new LanguageModel[0], 20);
+            System.out.println("Merge Test failed: no models were merged");
+            result = false;
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        return result;
+    }
+
+    // Test method for the list orders: a model has the same counts in every order, and its
+    // seeded texts are the same from run to run, and after save and load
+    public static boolean testListOrder() throws Exception {
+        boolean result = true;
+        int [] orders = {List.TRANSPOSE, List.FREQUENCY_ORDER};
+        LanguageModel model = new LanguageModel(5, 20);
+        model.train("shakespeareinlove.txt");
+        for (int i = 0; i < orders.length; i++) {
+            LanguageModel ordered = new LanguageModel(5, 20);
+            ordered.setListOrder(orders[i]);
+            ordered.train("shakespeareinlove.txt");
+            LanguageModel again = new LanguageModel(5, 20);
+            again.setListOrder(orders[i]);
+            again.train("shakespeareinlove.txt");
+            boolean res = ordered.getContextCount() == model.getContextCount();
+            for (String window : model.CharDataMap.keySet()) {
+                CharData[] arr = model.CharDataMap.get(window).toArray();
+                Distribution probs = ordered.CharDataMap.get(window);
+                res = res && probs.getSize() == arr.length;
+                for (int j = 0; j < arr.length; j++) {
+                    res = res && probs.get(probs.indexOf(arr[j].chr)).count == arr[j].count;
+                }
+            }
+            File file = File.createTempFile("model", ".lm");
+            file.deleteOnExit();
+            ordered.save(file.getPath());
+            LanguageModel loaded = LanguageModel.load(file.getPath(), 20);
+            String text = ordered.generate("WILL: Shall I", 1000);
+            res = res && text.equals(again.generate("WILL: Shall I", 1000))
+                    && text.equals(loaded.generate("WILL: Shall I", 1000))
+                    && loaded.getListOrder() == orders[i];
+            if (!res) {
+                System.out.println("ListOrder Test failed with order " + orders[i]);
+            }
+            result = result && res;
+        }
+        return result;
+    }
+
+    // Test method for the dense form of CharDistribution: it must behave like a List, also
+    // when characters get their codes late or are removed, and give the same model
+    public static boolean testDenseDistribution() {
+        String text = "the quick brown fox jumps over the lazy dog, THE QUICK BROWN FOX!";
+        Alphabet alphabet = new Alphabet();
+        List list = new List();
+        CharDistribution distribution = new CharDistribution(alphabet);
+        for (int i = 0; i < text.length(); i++) {
+            // The characters of the second half get their codes after they are added
+            if (i < text.length() / 2) {
+                alphabet.add(text.charAt(i));
+            }
+            list.update(text.charAt(i));
+            distribution.update(text.charAt(i));
+        }
+        for (int i = 0; i < text.length(); i++) {
+            alphabet.add(text.charAt(i));
+            list.update(text.charAt(i));
+            distribution.update(text.charAt(i));
+        }
+        boolean result = distribution.isDense() && list.toString().equals(distribution.toString())
+                && list.indexOf('Q') == distribution.indexOf('Q') && distribution.indexOf('#') == -1;
+        if (!result) {
+            System.out.println("Expected: " + list);
+            System.out.println("Actual: " + distribution);
+        }
+        // Removing characters keeps the index right, and ends with the sparse form
+        String removed = "thequickbrownfxjmpsvlaydgTHEQUICKBROWNFX";
+        for (int i = 0; i < removed.length() && result; i++) {
+            result = list.remove(removed.charAt(i)) == distribution.remove(removed.charAt(i));
+            distribution.update('z');
+            list.update('z');
+            result = result && list.toString().equals(distribution.toString());
+        }
+        result = result && !distribution.isDense();
+        if (!result) {
+            System.out.println("DenseDistribution Test failed after removing characters");
+        }
+        String [] corpora = {"shakespeareinlove.txt", "originofspecies.txt"};
+        for (int i = 0; i < corpora.length; i++) {
+            LanguageModel lists = new LanguageModel(2, 20);
+            lists.train(corpora[i]);
+            LanguageModel arrays = new LanguageModel(2, 20);
+            arrays.setCompactDistributions(true);
+            arrays.train(corpora[i]);
+            LanguageModel parallel = new LanguageModel(2, 20);
+            parallel.setCompactDistributions(true);
+            parallel.setPackedKeys(true);
+            parallel.trainParallel(corpora[i], 4);
+            boolean dense = false;
+            for (Distribution probs : distributionsOf(arrays)) {
+                dense = dense || ((CharDistribution) probs).isDense();
+            }
+            String expected = lists.generate("Th", 2000);
+            boolean res = dense && lists.toString().equals(arrays.toString())
+                    && expected.equals(arrays.generate("Th", 2000))
+                    && expected.equals(parallel.generate("Th", 2000));
+            if (!res) {
+                System.out.println("DenseDistribution Test failed: the model of " + corpora[i]
+                                   + " is not the same as with lists");
+            }
+            result = result && res;
+        }
+        return result;
+    }
+
+    // Test method for ConcurrentLanguageModel: documents trained by several threads at the
+    // same time must give the counts of a model that trains them one after the other
+    public static boolean testConcurrent() throws Exception {
+        boolean result = true;
+        String corpus = new String(Files.readAllBytes(new File("originofspecies.txt").toPath()),
+                                   StandardCharsets.UTF_8);
+        final String[] documents = new String[(corpus.length() + 999) / 1000];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = corpus.substring(1000 * i, Math.min(1000 * (i + 1), corpus.length()));
+        }
+        int [] windowLengths = {1, 5};
+        for (int i = 0; i < windowLengths.length; i++) {
+            LanguageModel sequential = new LanguageModel(windowLengths[i], 20);
+            for (int j = 0; j < documents.length; j++) {
+                sequential.trainText(documents[j]);
+            }
+            final ConcurrentLanguageModel concurrent = new ConcurrentLanguageModel(windowLengths[i]);
+            final AtomicInteger nextDocument = new AtomicInteger();
+            Thread[] threads = new Thread[4];
+            for (int j = 0; j < threads.length; j++) {
+                threads[j] = new Thread(new Runnable() {
+                    public void run() {
+                        for (int k = nextDocument.getAndIncrement(); k < documents.length;
+                                k = nextDocument.getAndIncrement()) {
+                            concurrent.trainText(documents[k]);
+                        }
+                    }
+                });
+                threads[j].start();
+            }
+            for (int j = 0; j < threads.length; j++) {
+                threads[j].join();
+            }
+            LanguageModel copy = newModel(windowLengths[i], true, false);
+            concurrent.addTo(copy);
+            boolean res = concurrent.getContextCount() == sequential.getContextCount()
+                    && copy.getContextCount() == sequential.getContextCount()
+                    && concurrent.getCount("zzzzz".substring(0, windowLengths[i]), '#') == 0;
+            for (String window : sequential.CharDataMap.keySet()) {
+                CharData[] arr = sequential.CharDataMap.get(window).toArray();
+                for (int j = 0; j < arr.length && res; j++) {
+                    res = concurrent.getCount(window, arr[j].chr) == arr[j].count;
+                }
+            }
+            LanguageModel again = newModel(windowLengths[i], true, false);
+            concurrent.addTo(again);
+            res = res && copy.toString().equals(again.toString())
+                    && copy.generate(documents[0].substring(0, windowLengths[i]), 1000)
+                           .equals(again.generate(documents[0].substring(0, windowLengths[i]), 1000));
+            if (!res) {
+                System.out.println("Concurrent Test failed with windowLength = " + windowLengths[i]);
+            }
+            result = result && res;
+        }
+        return result;
+    }
+
+    // Test method for snapshot(): a snapshot must generate the texts of the model at the time
+    // it was taken, also after the model trains more, and while other threads read it
+    public static boolean testSnapshot() throws Exception {
+        boolean result = true;
+        String corpus = new String(Files.readAllBytes(new File("shakespeareinlove.txt").toPath()),
+                                   StandardCharsets.UTF_8);
+        int [] samplerTypes = {LanguageModel.WALK_SAMPLER, LanguageModel.ALIAS_SAMPLER};
+        for (int i = 0; i < 4; i++) {
+            LanguageModel model = newModel(4, i % 2 == 1, false);
+            model.setSamplerType(samplerTypes[i / 2]);
+            model.trainText(corpus.substring(0, 20000));
+            ModelSnapshot first = model.snapshot();
+            String expected = model.generate("WILL", 500, new Random(5));
+            boolean res = first.generate("WILL", 500, new Random(5)).equals(expected)
+                    && model.getSnapshot() == first && model.snapshot().getLevelCount() == 1;
+            // Training in small documents adds small levels, which are merged
+            int maxLevels = 0;
+            for (int from = 20000; from < corpus.length(); from += 1000) {
+                model.trainText(corpus.substring(from, Math.min(from + 1000, corpus.length())));
+                ModelSnapshot snapshot = model.snapshot();
+                maxLevels = Math.max(maxLevels, snapshot.getLevelCount());
+                res = res && snapshot.getSize() == model.getContextCount();
+            }
+            res = res && maxLevels > 1 && maxLevels <= 32 - Integer.numberOfLeadingZeros(model.getContextCount()) + 1
+                    && first.generate("WILL", 500, new Random(5)).equals(expected)
+                    && model.getSnapshot().generate("WILL", 500, new Random(5))
+                            .equals(model.generate("WILL", 500, new Random(5)));
+            // Pruning removes windows, and the next snapshot has all the windows again
+            model.prune(2, 1);
+            ModelSnapshot pruned = model.snapshot();
+            res = res && pruned.getLevelCount() == 1 && pruned.getSize() == model.getContextCount()
+                    && pruned.generate("WILL", 500, new Random(5)).equals(model.generate("WILL", 500, new Random(5)));
+            if (!res) {
+                System.out.println("Snapshot Test failed with " + (i % 2 == 1 ? "packed keys" : "String keys")
+                                   + " and sampler type " + samplerTypes[i / 2]);
+            }
+            result = result && res;
+        }
+        // Readers generate from the published snapshots while the model trains
+        final LanguageModel model = new LanguageModel(4, 20);
+        model.trainText(corpus.substring(0, 1000));
+        model.snapshot();
+        final AtomicBoolean training = new AtomicBoolean(true);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] readers = new Thread[3];
+        for (int j = 0; j < readers.length; j++) {
+            final Random random = new Random(j);
+            readers[j] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (training.get()) {
+                            ModelSnapshot snapshot = model.getSnapshot();
+                            if (snapshot.generate("To b", 200, random).length() < 4) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            readers[j].start();
+        }
+        for (int from = 1000; from < corpus.length(); from += 2000) {
+            model.trainText(corpus.substring(from, Math.min(from + 2000, corpus.length())));
+            model.snapshot();
+        }
+        training.set(false);
+        for (int j = 0; j < readers.length; j++) {
+            readers[j].join();
+        }
+        boolean res = failures.get() == 0 && model.getSnapshot().getSize() == model.getContextCount();
+        if (!res) {
+            System.out.println("Snapshot Test failed: " + failures.get() + " readers failed");
+        }
+        return result && res;
+    }
+
+    // Test method for ContextTable: a table grows (to a power of 2 of slots) when more than its
+    // load factor of slots are in use, keeps its entries in order, and its memory estimate
+    // grows with it
+    public static boolean testContextTable() {
+        boolean res = true;
+        float [] loadFactors = {0.25f, ContextTable.DEFAULT_LOAD_FACTOR, 0.75f};
+        for (int i = 0; i < loadFactors.length; i++) {
+            ContextTable table = new ContextTable(1, loadFactors[i]);
+            long bytes = table.memoryBytes();
+            for (int j = 1; j <= 5000; j++) {
+                int capacity = table.capacity();
+                table.put(j * 31L, new List());
+                int expected = capacity;
+                while (j > loadFactors[i] * expected) {
+                    expected *= 2;
+                }
+                res = res && table.capacity() == expected && table.getLoadFactor() == loadFactors[i];
+                res = res && table.memoryBytes() >= bytes && (table.capacity() == capacity || table.memoryBytes() > bytes);
+                bytes = table.memoryBytes();
+            }
+            for (int j = 1; j <= 5000; j++) {
+                res = res && table.keyAt(j - 1) == j * 31L && table.get(j * 31L) == table.valueAt(j - 1);
+            }
+            res = res && table.getSize() == 5000 && table.get(7) == null;
+            if (!res) {
+                System.out.println("ContextTable Test failed with load factor " + loadFactors[i]);
+            }
+        }
+        try {
+            new ContextTable(16, 1);
+            System.out.println("ContextTable Test failed: a load factor of 1 was accepted");
+            res = false;
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        return res;
+    }
+
+    // Test method for CorpusReader: small chunks must not split or lose surrogate pairs, and a
+    // chunk must have room for a pair
+    public static boolean testCorpusReader() throws Exception {
+        String content = "a\uD83D\uDE00b\uD83D\uDE01\uD83D\uDE02 c\u00e9";
+        File file = File.createTempFile("corpus", ".txt");
+        file.deleteOnExit();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8));
+        bw.write(content);
+        bw.close();
+        boolean res = true;
+        for (int chunkSize = 2; chunkSize <= 4; chunkSize++) {
+            CorpusReader reader = new CorpusReader(file.getPath(), chunkSize);
+            String read = new String(reader.readAll());
+            reader.close();
+            if (!read.equals(content)) {
+                System.out.println("CorpusReader Test failed with chunks of " + chunkSize + ": " + read);
+                res = false;
+            }
+        }
+        // readTrimmed hands out the whitespace between chunks, but not the trailing whitespace
+        bw = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8));
+        bw.write("ab  \n cd \n\n ");
+        bw.close();
+        for (int chunkSize = 2; chunkSize <= 4; chunkSize++) {
+            StringBuilder read = new StringBuilder();
+            CorpusReader reader = new CorpusReader(file.getPath(), chunkSize);
+            reader.readTrimmed((chars, from, to) -> read.append(chars, from, to - from));
+            reader.close();
+            if (!read.toString().equals("ab  \n cd")) {
+                System.out.println("CorpusReader Test failed with trimmed chunks of " + chunkSize + ": " + read);
+                res = false;
+            }
+        }
+        try {
+            new CorpusReader(file.getPath(), 1);
+            System.out.println("CorpusReader Test failed: a chunk of 1 character was accepted");
+            res = false;
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        return res;
+    }
+
+    // Test method for the metrics: they must count what the model did, be readable over JMX,
+    // and not change the texts the model generates
+    public static boolean testMetrics() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        boolean result = Math.abs(histogram.getPercentile(50) - 500) <= 500 / 8
+                && Math.abs(histogram.getPercentile(99.9) - 999) <= 999 / 8
+                && histogram.getCount() == 1000 && histogram.getMean() == 500.5;
+        LanguageModel plain = new LanguageModel(3, 20);
+        plain.train("shakespeareinlove.txt");
+        LanguageModel model = new LanguageModel(3, 20);
+        result = result && model.getMetrics() == null;
+        model.setMetricsEnabled(true);
+        model.train("shakespeareinlove.txt");
+        model.updateMetrics();
+        ModelMetrics metrics = model.getMetrics();
+        long counts = 0;
+        long windows = 0;
+        for (Distribution probs : distributionsOf(model)) {
+            for (int i = 0; i < probs.getSize(); i++) {
+                counts += probs.get(i).count;
+            }
+        }
+        for (int i = 0; i < metrics.getFanOutHistogram().length; i++) {
+            windows += metrics.getFanOutHistogram()[i];
+        }
+        result = result && metrics.getCharactersTrained() == counts + 3
+                && metrics.getTrainingCharactersPerSecond() > 0
+                && metrics.getContextCount() == model.getContextCount() && windows == model.getContextCount()
+                && metrics.getEstimatedHeapBytes() == model.getMemoryBytes() && metrics.getMeanFanOut() >= 1;
+        int generated = 0;
+        for (int i = 0; i < 20; i++) {
+            String text = model.generate("Will", 500);
+            result = result && text.equals(plain.generate("Will", 500));
+            generated += text.length() - 3;
+        }
+        result = result && metrics.getGenerateCount() == 20 && metrics.getWalkCount() == generated
+                && metrics.getMeanWalkLength() >= 1 && metrics.getWalkLengthP99() >= 1
+                && metrics.getGenerateLatencyP50Micros() > 0
+                && metrics.getGenerateLatencyP50Micros() <= metrics.getGenerateLatencyP99Micros()
+                && metrics.getGenerateLatencyP99Micros() <= metrics.getGenerateLatencyP999Micros();
+        metrics.register("tester");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("LanguageModel:type=ModelMetrics,name=\"tester\"");
+        result = result && ((Integer) server.getAttribute(name, "ContextCount")) == model.getContextCount();
+        server.invoke(name, "reset", null, null);
+        result = result && metrics.getGenerateCount() == 0 && metrics.getContextCount() == model.getContextCount();
+        metrics.unregister();
+        result = result && !server.isRegistered(name);
+        model.setMetricsEnabled(false);
+        result = result && model.getMetrics() == null;
+        if (!result) {
+            System.out.println("Metrics Test failed");
+        }
+        return result;
+    }
+
+    // Returns a new model with the given settings, and seed 20.
+    private static LanguageModel newModel(int windowLength, boolean packed, boolean trie) {
+        LanguageModel model = new LanguageModel(windowLength, 20);
+        model.setPackedKeys(packed);
+        model.setCompactDistributions(packed);
+        model.setContextTrie(trie);
+        return model;
+    }
+
+    // Returns the distributions of the given model, from any of its context stores.
+    private static java.util.List<Distribution> distributionsOf(LanguageModel model) {
+        java.util.List<Distribution> distributions = new ArrayList<Distribution>(model.CharDataMap.values());
+        if (model.packedMap != null) {
+            for (int i = 0; i < model.packedMap.getSize(); i++) {
+                distributions.add(model.packedMap.valueAt(i));
+            }
+        }
+        if (model.contextTrie != null) {
+            for (int i = 0; i < model.contextTrie.getSize(); i++) {
+                distributions.add(model.contextTrie.valueAt(i));
+            }
+        }
+        return distributions;
+    }
+
+    // Returns the lines of the given text, sorted.
+    private static java.util.List<String> sortedLines(String text) {
+        java.util.List<String> lines = new ArrayList<String>(Arrays.asList(text.split("\n")));
+        Collections.sort(lines);
+        return lines;
+    }
+
     private static boolean stringEqualsNoSpaces(String s1, String s2) {
         s1 = s1.replaceAll("\\s+", "");
         s2 = s2.replaceAll("\\s+", "");
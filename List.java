@@ -3,7 +3,7 @@
  *  However, users of this class are not aware of the Node objects. As far as they are concerned,
  *  the class represents a list of CharData objects. Likwise, the API of the class does not
  *  mention the existence of the Node objects). */
-public class List {
+public class List implements Distribution {
 
     // Points to the first node in this list
     private Node first;
@@ -12,6 +12,29 @@ public class List {
     private int size;
 
     public char chr;
+
+    // True if the counts of this list changed since its probabilities were computed
+    boolean dirty;
+
+    // True if this list is in the list of changed lists of its model
+    boolean queued;
+
+    // Samples this list when its probabilities are computed, or null if the model
+    // walks the list instead
+    Sampler sampler;
+
+    // Ways of ordering a list as it is updated: new characters go to the beginning, and
+    // characters keep their place (the default); a character that is updated swaps places
+    // with the character before it; or the list is kept in decreasing order of counts
+    // (new characters go to the end, and an updated character moves ahead of the characters
+    // that had the same count). The last two keep the frequent characters near the
+    // beginning, where update and a walk find them sooner.
+    public static final int INSERTION_ORDER = 0;
+    public static final int TRANSPOSE = 1;
+    public static final int FREQUENCY_ORDER = 2;
+
+    // The way update orders this list
+    private int order;
 	
     /** Constructs an empty list. */
     public List() {
@@ -19,6 +42,29 @@ public class List {
         size = 0;
     }
 
+    /** Constructs an empty list that update orders in the given way. */
+    public List(int order) {
+        this();
+        setOrder(order);
+    }
+
+    /** Sets the way update orders this list: INSERTION_ORDER, TRANSPOSE or FREQUENCY_ORDER.
+     *  Switching to FREQUENCY_ORDER sorts the list by count (keeping the order of equal counts). */
+    public void setOrder(int order) {
+        if (order != INSERTION_ORDER && order != TRANSPOSE && order != FREQUENCY_ORDER) {
+            throw new IllegalArgumentException("Unknown list order: " + order);
+        }
+        this.order = order;
+        if (order == FREQUENCY_ORDER) {
+            sortByCount();
+        }
+    }
+
+    /** Returns the way update orders this list. */
+    public int getOrder() {
+        return order;
+    }
+
     public Node getFirstNode(){
         return first;
       } 
@@ -28,6 +74,21 @@ public class List {
  	      return size;
     }
 
+    /** Returns true if the counts of this list changed since its probabilities were computed. */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /** Returns true if this list is in the list of changed lists of its model. */
+    public boolean isQueued() {
+        return queued;
+    }
+
+    /** Sets whether this list is in the list of changed lists of its model. */
+    public void setQueued(boolean queued) {
+        this.queued = queued;
+    }
+
     /** Returns the first element in the list */
     public CharData getFirst() {
         return first.cp;
@@ -45,6 +106,7 @@ public class List {
             first = newNode;
         }
         size++;
+        dirty = true;
     }
     /** GIVE Textual representation of this list. */
         public String toString() {
@@ -74,37 +136,203 @@ public class List {
     }
     /** If the given character exists in one of the CharData objects in this list,
      *  increments its counter. Otherwise, adds a new CharData object with the
-     *  given chr to the beginning of this list. */
+     *  given chr to the beginning of this list (to its end, in FREQUENCY_ORDER).
+     *  Finds, increments and moves the character in one pass over the list. */
     public void update(char chr) {
-        int index = indexOf(chr);
-        if (index == -1) {
-            addFirst(chr);
-        } else {
-            ListIterator iterator = listIterator(index);
-            iterator.current.cp.count++;
+        dirty = true;
+        Node beforePrevious = null;
+        Node previous = null;
+        // The node before the first node that has the count of the current node
+        // (null if it is the first node of the list)
+        Node beforeRun = null;
+        Node current = first;
+        while (current != null) {
+            if (order == FREQUENCY_ORDER && previous != null && previous.cp.count != current.cp.count) {
+                beforeRun = previous;
+            }
+            if (current.cp.chr == chr) {
+                break;
+            }
+            beforePrevious = previous;
+            previous = current;
+            current = current.next;
+        }
+        if (current == null) {
+            if (order == FREQUENCY_ORDER && previous != null) {
+                previous.next = new Node(new CharData(chr));
+                size++;
+            } else {
+                addFirst(chr);
+            }
+            return;
+        }
+        current.cp.count++;
+        if (order == TRANSPOSE && previous != null) {
+            // Swaps the current node with the node before it
+            previous.next = current.next;
+            current.next = previous;
+            if (beforePrevious == null) {
+                first = current;
+            } else {
+                beforePrevious.next = current;
+            }
+        } else if (order == FREQUENCY_ORDER && beforeRun != previous) {
+            // Moves the current node ahead of the nodes that had the same count
+            previous.next = current.next;
+            if (beforeRun == null) {
+                current.next = first;
+                first = current;
+            } else {
+                current.next = beforeRun.next;
+                beforeRun.next = current;
             }
         }
+    }
+
+    /** Adds the counts of the given distribution to the counts of this list.
+     *  Characters that are not in this list are added to its beginning, keeping the
+     *  order they have in the given distribution. If the given distribution was built
+     *  from text that follows the text of this list, the result is the list that update
+     *  would build from the whole text. */
+    public void merge(Distribution other) {
+        CharData[] arr = other.toArray();
+        for (int i = arr.length - 1; i >= 0; i--) {
+            Node node = find(arr[i].chr);
+            if (node == null) {
+                addFirst(arr[i].chr);
+                first.cp.count = arr[i].count;
+            } else {
+                node.cp.count += arr[i].count;
+                dirty = true;
+            }
+        }
+        if (order == FREQUENCY_ORDER) {
+            sortByCount();
+        }
+    }
+
+    // Returns the node of the given character, or null if it is not in this list.
+    private Node find(char chr) {
+        Node current = first;
+        while (current != null && current.cp.chr != chr) {
+            current = current.next;
+        }
+        return current;
+    }
+
+    // Sorts this list in decreasing order of counts, keeping the order of equal counts
+    // (an insertion sort: lists are short, and usually almost sorted).
+    private void sortByCount() {
+        Node sorted = null;
+        Node last = null;
+        Node current = first;
+        while (current != null) {
+            Node next = current.next;
+            if (sorted == null || last.cp.count >= current.cp.count) {
+                // Goes after all the sorted nodes
+                current.next = null;
+                if (sorted == null) {
+                    sorted = current;
+                } else {
+                    last.next = current;
+                }
+                last = current;
+            } else if (sorted.cp.count < current.cp.count) {
+                current.next = sorted;
+                sorted = current;
+            } else {
+                Node node = sorted;
+                while (node.next.cp.count >= current.cp.count) {
+                    node = node.next;
+                }
+                current.next = node.next;
+                node.next = current;
+            }
+            current = next;
+        }
+        first = sorted;
+    }
+
+    /** Computes and sets the probabilities (p and cp fields) of all the
+     *  characters in this list. */
+    public void calculateProbabilities() {
+        // Calculate the total number of characters
+        int totalCounter = 0;
+        Node current = first;
+        while (current != null) {
+            totalCounter += current.cp.count;
+            current = current.next;
+        }
+        // Calculate and set the probabilities (p and cp fields) of all the characters in the list
+        current = first;
+        double cumulativeProbability = 0.0;
+        while (current != null) {
+            current.cp.p = (double) current.cp.count / totalCounter;
+            cumulativeProbability += current.cp.p;
+            current.cp.cp = cumulativeProbability;
+            current = current.next;
+        }
+        dirty = false;
+    }
+
+    /** Returns the first character in this list whose cumulative probability is
+     *  greater than the given random number. */
+    public char sample(double random) {
+        return (char) walk(random);
+    }
+
+    /** Walks this list like sample, and returns the selected character in the low 16 bits,
+     *  and its index in the high 16 bits. */
+    public int walk(double random) {
+        Node current = first;
+        int index = 0;
+        while (current != null) {
+            if (random < current.cp.cp) {
+                return (index << 16) | current.cp.chr;
+            }
+            current = current.next;
+            index++;
+        }
+        throw new IllegalStateException("Unable to determine a random character");
+    }
+
+    /** Returns the sampler built for this list, or null if there is none. */
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    /** Sets the sampler built for this list (null to walk it instead). */
+    public void setSampler(Sampler sampler) {
+        this.sampler = sampler;
+    }
 
     /** GIVE If the given character exists in one of the CharData objects
      *  in this list, removes this CharData object from the list and returns
      *  true. Otherwise, returns false. */
     public boolean remove(char chr) {
-        if(indexOf(chr)==-1){
-            return false;
-        }
         Node prev = null;
         Node current = first;
         while (current != null) {
-            //in case this is the first
-            if (current.cp.chr==(chr)) {
-                current=current.next;
+            if (current.cp.chr == chr) {
+                if (prev == null) {
+                    first = current.next;
+                } else {
+                    prev.next = current.next;
+                }
                 size--;
+                dirty = true;
                 return true;
             }
             prev = current;
             current = current.next;
         }
-        return true;
+        return false;
+    }
+
+    /** Returns an estimate of the number of bytes this list uses: 32 for the list, and 64 for
+     *  each character (a 24 byte Node and a 40 byte CharData). */
+    public long memoryBytes() {
+        return 32 + 64L * size;
     }
 
     /** Returns the CharData object at the specified index in this list. 
@@ -24,6 +24,9 @@ public class ListTester {
             case "remove":
                 result = testRemove();
                 break;
+            case "updateOrder":
+                result = testUpdateOrder();
+                break;
             
             case "all":
                 result = testAddFirst();
@@ -188,6 +191,50 @@ public class ListTester {
         return result;
     }
 
+    // Tests the orders of update: the counts are the same in every order, and the characters
+    // are in the order of the policy
+    public static boolean testUpdateOrder() {
+        boolean result = true;
+        int [] orders = {List.INSERTION_ORDER, List.TRANSPOSE, List.FREQUENCY_ORDER};
+        String [] expected = {"n2 a3 b1", "a3 n2 b1", "a3 n2 b1"};
+        String [] testWords = {"banana", "commitee_", "Hello_World", "linked_lists_are_fun", "lexicographic_order"};
+        for (int i = 0; i < orders.length; i++) {
+            for (int j = 0; j < testWords.length; j++) {
+                String w = testWords[j];
+                List yourSolution = new List(orders[i]);
+                for (int k = 0; k < w.length(); k++) {
+                    yourSolution.update(w.charAt(k));
+                }
+                boolean res = true;
+                String actual = "";
+                int distinct = 0;
+                for (int k = 0; k < w.length(); k++) {
+                    distinct += (w.indexOf(w.charAt(k)) == k) ? 1 : 0;
+                }
+                res = res && yourSolution.getSize() == distinct;
+                for (int k = 0; k < yourSolution.getSize(); k++) {
+                    CharData data = yourSolution.get(k);
+                    res = res && data.count == countCharUpToIndex(w, data.chr, w.length());
+                    if (orders[i] == List.FREQUENCY_ORDER && k > 0) {
+                        res = res && yourSolution.get(k - 1).count >= data.count;
+                    }
+                    actual += (k == 0 ? "" : " ") + data.chr + data.count;
+                }
+                if (j == 0) {
+                    res = res && actual.equals(expected[i]);
+                }
+                if (!res) {
+                    System.out.println("Word: " + w + ", order: " + orders[i] + ", actual: " + actual);
+                }
+                result = result && res;
+            }
+        }
+        if (!result) {
+            System.out.println("UpdateOrder Test failed");
+        }
+        return result;
+    }
+
     private static boolean testUpdateCase (List yourSolution, String sol, int index) {
         char c = sol.charAt(index);
         int count = countCharUpToIndex(sol,c,index);
@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+
+/** A read-only language model, served straight from a frozen model file (written by
+ *  LanguageModel.freeze) that is mapped into memory. Nothing is copied to the heap: the
+ *  windows, characters and cumulative probabilities are read from the mapped file, so
+ *  opening a model is almost instant, and processes that map the same file share one
+ *  copy of it in the page cache.
+ *  The file is laid out as flat arrays:
+ *  a header (magic, version, window length, number of windows, number of characters,
+ *  number of slots), the cumulative probabilities of all the distributions (doubles),
+ *  a hash table of the windows (slot -> window number + 1, 0 = empty slot), the start of
+ *  each window's distribution in the character arrays (ints), the characters of all the
+ *  windows, and the characters of all the distributions (chars).
+ *  Characters are sampled like the walk of a List, so with the same seed, generate returns
+ *  the same texts as the LanguageModel that was frozen (unless it uses alias samplers).
+ *  Frozen files are limited to 2 GB. */
+public class MappedLanguageModel {
+
+    // The first bytes of a frozen model file ("LMFZ"), and the version of its format.
+    private static final int MAGIC = 0x4C4D465A;
+    private static final int VERSION = 1;
+
+    // The size of the header, in bytes (a multiple of 8, so the doubles that follow are aligned)
+    private static final int HEADER_SIZE = 32;
+
+    // The window length of this model
+    private final int windowLength;
+
+    // The number of windows of this model
+    private final int size;
+
+    // The cumulative probabilities of all the distributions
+    private final DoubleBuffer cp;
+
+    // The hash table of the windows: slot -> window number + 1 (0 = empty slot)
+    private final IntBuffer slots;
+
+    // The distribution of window i is symbols[starts[i]] .. symbols[starts[i + 1] - 1]
+    private final IntBuffer starts;
+
+    // The characters of all the windows, windowLength characters per window
+    private final CharBuffer windows;
+
+    // The characters of all the distributions
+    private final CharBuffer symbols;
+
+    // Used to map a hash code to a slot: slot = hash >>> shift
+    private final int shift;
+
+    // The random number generator used by this model
+    private final Random randomGenerator;
+
+    /** Maps the given frozen model file, with the given seed. */
+    public MappedLanguageModel(String fileName, int seed) throws IOException {
+        this(fileName, new Random(seed));
+    }
+
+    /** Maps the given frozen model file. The model generates different random texts every time. */
+    public MappedLanguageModel(String fileName) throws IOException {
+        this(fileName, new Random());
+    }
+
+    private MappedLanguageModel(String fileName, Random randomGenerator) throws IOException {
+        this.randomGenerator = randomGenerator;
+        MappedByteBuffer file;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a frozen language model file: " + fileName);
+            }
+            // The mapping stays valid after the channel is closed
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (file.getInt(0) != MAGIC) {
+            throw new IOException("Not a frozen language model file: " + fileName);
+        }
+        if (file.getInt(4) != VERSION) {
+            throw new IOException("Unsupported frozen language model file version: " + file.getInt(4));
+        }
+        windowLength = file.getInt(8);
+        size = file.getInt(12);
+        int symbolCount = file.getInt(16);
+        int slotCount = file.getInt(20);
+        if (windowLength < 0 || size < 0 || symbolCount < 0 || Integer.bitCount(slotCount) != 1
+                || file.capacity() != fileSize(windowLength, size, symbolCount, slotCount)) {
+            throw new IOException("Malformed frozen language model file: " + fileName);
+        }
+        int position = HEADER_SIZE;
+        cp = slice(file, position, 8L * symbolCount).asDoubleBuffer();
+        position += 8 * symbolCount;
+        slots = slice(file, position, 4L * slotCount).asIntBuffer();
+        position += 4 * slotCount;
+        starts = slice(file, position, 4L * (size + 1)).asIntBuffer();
+        position += 4 * (size + 1);
+        windows = slice(file, position, 2L * size * windowLength).asCharBuffer();
+        position += 2 * size * windowLength;
+        symbols = slice(file, position, 2L * symbolCount).asCharBuffer();
+        shift = 64 - Integer.numberOfTrailingZeros(slotCount);
+    }
+
+    /** Returns the window length of this model. */
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    /** Returns the number of windows of this model. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns a random character that follows the given window (of windowLength characters). */
+    public char getRandomChar(String window) {
+        return getRandomChar(window, randomGenerator);
+    }
+
+    /** Returns a random character that follows the given window, using the given random number
+     *  generator instead of the generator of this model. */
+    public char getRandomChar(String window, RandomGenerator random) {
+        if (window.length() != windowLength) {
+            throw new IllegalArgumentException("window length must be " + windowLength);
+        }
+        int index = indexOf(window.toCharArray(), 0);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown window: " + window);
+        }
+        return sample(index, random.nextDouble());
+    }
+
+    /** Generates a random text, like LanguageModel.generate: starts with the last windowLength
+     *  characters of the given text, and adds up to textLength characters to them (fewer, if
+     *  the model reaches a window it has never seen). */
+    public String generate(String initialText, int textLength) {
+        return generate(initialText, textLength, randomGenerator);
+    }
+
+    /** Generates a random text like generate(String, int), using the given random number
+     *  generator instead of the generator of this model. The mapped file is only read, so
+     *  several threads may generate texts at the same time, each with its own generator. */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        if (initialText.length() < windowLength) {
+            return initialText;
+        }
+        char[] text = LanguageModel.newText(windowLength, textLength);
+        initialText.getChars(initialText.length() - windowLength, initialText.length(), text, 0);
+        int end = windowLength + Math.max(textLength, 0);
+        int i = windowLength;
+        while (i < end) {
+            if (i == text.length) {
+                text = LanguageModel.grow(text, end);
+            }
+            int index = indexOf(text, i - windowLength);
+            if (index < 0) {
+                break;
+            }
+            text[i++] = sample(index, random.nextDouble());
+        }
+        return new String(text, 0, i);
+    }
+
+    // Returns the character of the given window's distribution whose cumulative probability is
+    // the first one that is greater than the given random number (the character a walk picks).
+    private char sample(int index, double random) {
+        int low = starts.get(index);
+        int high = starts.get(index + 1) - 1;
+        if (!(random < cp.get(high))) {
+            throw new IllegalStateException("Unable to determine a random character");
+        }
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (random < cp.get(middle)) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return symbols.get(low);
+    }
+
+    // Returns the number of the window text[from] .. text[from + windowLength - 1], or -1 if
+    // this model does not have it.
+    private int indexOf(char[] text, int from) {
+        int mask = slots.capacity() - 1;
+        for (int slot = slotOf(hash(text, from, windowLength), shift); ; slot = (slot + 1) & mask) {
+            int index = slots.get(slot) - 1;
+            if (index < 0) {
+                return -1;
+            }
+            int offset = index * windowLength;
+            int j = 0;
+            while (j < windowLength && windows.get(offset + j) == text[from + j]) {
+                j++;
+            }
+            if (j == windowLength) {
+                return index;
+            }
+        }
+    }
+
+    /** Writes a frozen model file, with the given windows (all of the given length), and their
+     *  distributions, whose probabilities must be computed. Used by LanguageModel.freeze. */
+    static void write(String fileName, int windowLength, String[] windowArray,
+                      Distribution[] distributions) throws IOException {
+        int size = windowArray.length;
+        long symbolTotal = 0;
+        for (int i = 0; i < size; i++) {
+            symbolTotal += distributions[i].getSize();
+        }
+        // Keeps the hash table at most half full
+        int slotCount = Integer.highestOneBit(Math.max(2 * size, 2) - 1) << 1;
+        long length = fileSize(windowLength, size, symbolTotal, slotCount);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The model is too large to freeze");
+        }
+        int symbolCount = (int) symbolTotal;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            file.putInt(MAGIC).putInt(VERSION).putInt(windowLength).putInt(size)
+                .putInt(symbolCount).putInt(slotCount);
+            int position = HEADER_SIZE;
+            DoubleBuffer cpOut = slice(file, position, 8L * symbolCount).asDoubleBuffer();
+            position += 8 * symbolCount;
+            IntBuffer slotsOut = slice(file, position, 4L * slotCount).asIntBuffer();
+            position += 4 * slotCount;
+            IntBuffer startsOut = slice(file, position, 4L * (size + 1)).asIntBuffer();
+            position += 4 * (size + 1);
+            CharBuffer windowsOut = slice(file, position, 2L * size * windowLength).asCharBuffer();
+            position += 2 * size * windowLength;
+            CharBuffer symbolsOut = slice(file, position, 2L * symbolCount).asCharBuffer();
+            int shift = 64 - Integer.numberOfTrailingZeros(slotCount);
+            int mask = slotCount - 1;
+            for (int i = 0; i < size; i++) {
+                String window = windowArray[i];
+                windowsOut.put(window);
+                int slot = slotOf(window.hashCode(), shift);
+                while (slotsOut.get(slot) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slotsOut.put(slot, i + 1);
+                startsOut.put(symbolsOut.position());
+                CharData[] arr = distributions[i].toArray();
+                for (int j = 0; j < arr.length; j++) {
+                    symbolsOut.put(arr[j].chr);
+                    cpOut.put(arr[j].cp);
+                }
+            }
+            startsOut.put(symbolCount);
+            file.force();
+        }
+    }
+
+    // Returns the size of a frozen model file, in bytes.
+    private static long fileSize(int windowLength, int size, long symbolCount, int slotCount) {
+        return HEADER_SIZE + 10 * symbolCount + 4L * slotCount + 4L * (size + 1)
+            + 2L * size * windowLength;
+    }
+
+    // Returns the bytes file[position] .. file[position + length - 1], as a buffer of their own.
+    private static ByteBuffer slice(ByteBuffer file, int position, long length) {
+        return file.duplicate().position(position).limit(position + (int) length).slice();
+    }
+
+    // Returns the hash code of the given characters; the same as the hash code of a String
+    // of these characters.
+    private static int hash(char[] text, int from, int length) {
+        int h = 0;
+        for (int i = from; i < from + length; i++) {
+            h = 31 * h + text[i];
+        }
+        return h;
+    }
+
+    // Returns the first slot to probe for the given hash code (Fibonacci hashing).
+    private static int slotOf(int hash, int shift) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+}
@@ -0,0 +1,170 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/** The metrics of a LanguageModel, enabled by LanguageModel.setMetricsEnabled: how fast it
+ *  trains, how large it is, and how fast it samples and generates. They can be read with the
+ *  getters, or over JMX once they are registered (see ModelMetricsMBean).
+ *  Counts and times are recorded as the model trains and generates, by any number of threads:
+ *  - the characters trained, and the time spent training them;
+ *  - the length of each walk over a distribution (WALK_SAMPLER only: the tables of the
+ *    other samplers take constant or logarithmic time);
+ *  - the time each call to generate(String, int) takes (not the streaming generate).
+ *  The gauges of the model (number of windows, fan-out, bytes) take a pass over all its
+ *  windows, so the thread that trains the model computes them, and publishes them here:
+ *  after prune and compact, and after training and merging at most once per
+ *  GAUGE_INTERVAL_NANOS, so they may be behind the model (LanguageModel.updateMetrics
+ *  brings them up to date).
+ *  A model whose metrics are disabled only pays a null check per operation. */
+public class ModelMetrics implements ModelMetricsMBean {
+
+    /** The shortest time between two computations of the gauges after trainText or
+     *  train(Reader), in nanoseconds. */
+    public static final long GAUGE_INTERVAL_NANOS = 1000000000L;
+
+    // The JMX domain of the metrics
+    private static final String DOMAIN = "LanguageModel";
+
+    // The characters trained, and the time spent training them
+    private final LongAdder charactersTrained = new LongAdder();
+    private final LongAdder trainingNanos = new LongAdder();
+
+    // The lengths of the walks, and the times to generate texts (in nanoseconds)
+    private final Histogram walkLengths = new Histogram();
+    private final Histogram generateNanos = new Histogram();
+
+    // The gauges of the model, and when they were computed (System.nanoTime)
+    private volatile int contextCount;
+    private volatile long heapBytes;
+    private volatile long[] fanOut = new long[0];
+    private volatile double meanFanOut;
+    private volatile long gaugeTime;
+
+    // The name the metrics are registered with, or null
+    private ObjectName name;
+
+    public long getCharactersTrained() {
+        return charactersTrained.sum();
+    }
+
+    public double getTrainingCharactersPerSecond() {
+        long nanos = trainingNanos.sum();
+        return (nanos == 0) ? 0 : charactersTrained.sum() * 1e9 / nanos;
+    }
+
+    public int getContextCount() {
+        return contextCount;
+    }
+
+    public long getEstimatedHeapBytes() {
+        return heapBytes;
+    }
+
+    public long[] getFanOutHistogram() {
+        return fanOut.clone();
+    }
+
+    public double getMeanFanOut() {
+        return meanFanOut;
+    }
+
+    public long getWalkCount() {
+        return walkLengths.getCount();
+    }
+
+    public double getMeanWalkLength() {
+        return walkLengths.getMean();
+    }
+
+    public long getWalkLengthP99() {
+        return walkLengths.getPercentile(99);
+    }
+
+    public long getGenerateCount() {
+        return generateNanos.getCount();
+    }
+
+    public double getGenerateLatencyP50Micros() {
+        return generateNanos.getPercentile(50) / 1e3;
+    }
+
+    public double getGenerateLatencyP99Micros() {
+        return generateNanos.getPercentile(99) / 1e3;
+    }
+
+    public double getGenerateLatencyP999Micros() {
+        return generateNanos.getPercentile(99.9) / 1e3;
+    }
+
+    /** Returns the histogram of the lengths of the walks. */
+    public Histogram getWalkLengths() {
+        return walkLengths;
+    }
+
+    /** Returns the histogram of the times to generate a text, in nanoseconds. */
+    public Histogram getGenerateNanos() {
+        return generateNanos;
+    }
+
+    public void reset() {
+        charactersTrained.reset();
+        trainingNanos.reset();
+        walkLengths.reset();
+        generateNanos.reset();
+    }
+
+    /** Registers these metrics with the platform MBean server, under the name
+     *  "LanguageModel:type=ModelMetrics,name=" + the given name. */
+    public synchronized void register(String modelName) throws JMException {
+        if (name != null) {
+            throw new IllegalStateException("The metrics are already registered as " + name);
+        }
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=ModelMetrics,name=" + ObjectName.quote(modelName));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        name = objectName;
+    }
+
+    /** Unregisters these metrics from the platform MBean server, if they are registered. */
+    public synchronized void unregister() throws JMException {
+        if (name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    // Records that the given number of characters were trained.
+    void addCharacters(long characters) {
+        charactersTrained.add(characters);
+    }
+
+    // Records that a training call took the given time.
+    void addTrainingTime(long nanos) {
+        trainingNanos.add(nanos);
+    }
+
+    // Records a walk over the given number of characters.
+    void recordWalk(int length) {
+        walkLengths.record(length);
+    }
+
+    // Records that generating a text took the given time.
+    void recordGenerate(long nanos) {
+        generateNanos.record(nanos);
+    }
+
+    // Returns true if the gauges were computed at least GAUGE_INTERVAL_NANOS before the given time.
+    boolean isGaugeDue(long now) {
+        return now - gaugeTime >= GAUGE_INTERVAL_NANOS;
+    }
+
+    // Publishes the gauges of the model, computed at the given time. The fan-out histogram
+    // array is not copied, and must not change afterwards.
+    void setGauges(int contextCount, long heapBytes, long[] fanOut, double meanFanOut, long time) {
+        this.contextCount = contextCount;
+        this.heapBytes = heapBytes;
+        this.fanOut = fanOut;
+        this.meanFanOut = meanFanOut;
+        gaugeTime = time;
+    }
+}
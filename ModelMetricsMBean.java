@@ -0,0 +1,46 @@
+/** The attributes and operations of ModelMetrics that JMX clients (such as jconsole) see,
+ *  once the metrics are registered (see ModelMetrics.register). */
+public interface ModelMetricsMBean {
+
+    /** Returns the number of characters trained. */
+    long getCharactersTrained();
+
+    /** Returns the number of characters trained per second of training. */
+    double getTrainingCharactersPerSecond();
+
+    /** Returns the number of windows of the model. */
+    int getContextCount();
+
+    /** Returns an estimate of the number of bytes the model uses. */
+    long getEstimatedHeapBytes();
+
+    /** Returns the number of windows followed by 2^i to 2^(i+1) - 1 characters, for each i. */
+    long[] getFanOutHistogram();
+
+    /** Returns the mean number of characters that follow a window. */
+    double getMeanFanOut();
+
+    /** Returns the number of characters sampled by walking a distribution. */
+    long getWalkCount();
+
+    /** Returns the mean number of characters a walk goes through. */
+    double getMeanWalkLength();
+
+    /** Returns the 99th percentile of the number of characters a walk goes through. */
+    long getWalkLengthP99();
+
+    /** Returns the number of texts generated. */
+    long getGenerateCount();
+
+    /** Returns the median time to generate a text, in microseconds. */
+    double getGenerateLatencyP50Micros();
+
+    /** Returns the 99th percentile of the time to generate a text, in microseconds. */
+    double getGenerateLatencyP99Micros();
+
+    /** Returns the 99.9th percentile of the time to generate a text, in microseconds. */
+    double getGenerateLatencyP999Micros();
+
+    /** Forgets the counts and times recorded so far (the gauges of the model are kept). */
+    void reset();
+}
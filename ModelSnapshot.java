@@ -0,0 +1,133 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.random.RandomGenerator;
+
+/** An immutable snapshot of the counts of a LanguageModel, taken by LanguageModel.snapshot.
+ *  A snapshot maps each window to a sampler (an alias or cumulative table) built from the
+ *  probabilities of its distribution, so it never changes once it is published: any number
+ *  of threads can generate texts from it at the same time, each with its own random number
+ *  generator, while the model it was taken from goes on training.
+ *  A new snapshot shares the maps of the previous one, and adds a level with the windows that
+ *  changed since then. A window is looked up in the newest level first. To keep the number of
+ *  levels small, a level is merged (into a new map) with the level before it whenever it gets
+ *  at least half as large: like the digits of a binary counter, there are then at most
+ *  log2(windows) + 1 levels, and each window is copied a logarithmic number of times over all
+ *  the snapshots that it changes in. */
+public class ModelSnapshot {
+
+    // The window length of this snapshot
+    private final int windowLength;
+
+    // The levels of this snapshot, from the oldest to the newest
+    private final HashMap<String, Sampler>[] levels;
+
+    // The number of windows of this snapshot
+    private final int size;
+
+    /** Constructs a snapshot that has the given windows (one level). */
+    ModelSnapshot(int windowLength, HashMap<String, Sampler> samplers) {
+        this(windowLength, newLevels(samplers), samplers.size());
+    }
+
+    private ModelSnapshot(int windowLength, HashMap<String, Sampler>[] levels, int size) {
+        this.windowLength = windowLength;
+        this.levels = levels;
+        this.size = size;
+    }
+
+    /** Returns the window length of this snapshot. */
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    /** Returns the number of windows of this snapshot. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the number of levels of this snapshot. */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /** Returns a random character that follows the given window (of windowLength characters),
+     *  using the given random number generator. */
+    public char getRandomChar(String window, RandomGenerator random) {
+        if (window.length() != windowLength) {
+            throw new IllegalArgumentException("window length must be " + windowLength);
+        }
+        Sampler sampler = samplerOf(window);
+        if (sampler == null) {
+            throw new IllegalArgumentException("Unknown window: " + window);
+        }
+        return sampler.sample(random.nextDouble());
+    }
+
+    /** Generates a random text, like LanguageModel.generate: starts with the last windowLength
+     *  characters of the given text, and adds up to textLength characters to them (fewer, if
+     *  the snapshot reaches a window it does not have), using the given random number
+     *  generator. */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        if (initialText.length() < windowLength) {
+            return initialText;
+        }
+        char[] text = LanguageModel.newText(windowLength, textLength);
+        initialText.getChars(initialText.length() - windowLength, initialText.length(), text, 0);
+        int end = windowLength + Math.max(textLength, 0);
+        int i = windowLength;
+        while (i < end) {
+            if (i == text.length) {
+                text = LanguageModel.grow(text, end);
+            }
+            Sampler sampler = samplerOf(new String(text, i - windowLength, windowLength));
+            if (sampler == null) {
+                break;
+            }
+            text[i++] = sampler.sample(random.nextDouble());
+        }
+        return new String(text, 0, i);
+    }
+
+    /** Returns a snapshot that has the windows of this one, where the given windows replace
+     *  or are added to them. This snapshot does not change. */
+    ModelSnapshot withChanges(HashMap<String, Sampler> changes) {
+        if (changes.isEmpty()) {
+            return this;
+        }
+        int added = 0;
+        for (String window : changes.keySet()) {
+            if (samplerOf(window) == null) {
+                added++;
+            }
+        }
+        HashMap<String, Sampler>[] next = Arrays.copyOf(levels, levels.length + 1);
+        int count = next.length;
+        next[count - 1] = changes;
+        while (count > 1 && 2 * next[count - 1].size() >= next[count - 2].size()) {
+            HashMap<String, Sampler> merged = new HashMap<String, Sampler>(next[count - 2]);
+            merged.putAll(next[count - 1]);
+            next[count - 2] = merged;
+            count--;
+        }
+        return new ModelSnapshot(windowLength, Arrays.copyOf(next, count), size + added);
+    }
+
+    // Returns the sampler of the given window, from the newest level that has it, or null if
+    // no level has it.
+    private Sampler samplerOf(String window) {
+        for (int i = levels.length - 1; i >= 0; i--) {
+            Sampler sampler = levels[i].get(window);
+            if (sampler != null) {
+                return sampler;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static HashMap<String, Sampler>[] newLevels(HashMap<String, Sampler> samplers) {
+        HashMap<String, Sampler>[] levels = new HashMap[1];
+        levels[0] = samplers;
+        return levels;
+    }
+}
@@ -0,0 +1,8 @@
+/** Samples characters from a probability distribution that does not change anymore
+ *  (for example, the probabilities of a list, once they are computed). */
+public interface Sampler {
+
+    /** Returns the character selected by the given random number, which should be
+     *  uniformly distributed between 0 (inclusive) and 1 (exclusive). */
+    char sample(double random);
+}
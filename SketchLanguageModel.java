@@ -0,0 +1,356 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+
+/** An approximate language model for corpora whose exact model does not fit in memory.
+ *  Its memory is allocated up front, and does not grow with the corpus:
+ *  - a CountMinSketch counts every window, and every (window, next character) pair;
+ *  - a table of heavy hitters keeps the windows seen most often (at most maxContexts of them),
+ *    and for each one, the set of characters that followed it, as a bit set over the codes
+ *    of an Alphabet.
+ *  Windows are identified by a 64 bit fingerprint of their characters, so any window length
+ *  can be used. When the table is full, the half of its windows with the lowest counts
+ *  is dropped, to make room for new windows. A window that is dropped loses the characters
+ *  it had collected, but not its counts (they are in the sketch).
+ *  generate samples the characters of a window with their estimated counts. It stops when it
+ *  reaches a window that is not in the table, like LanguageModel stops at an unseen window.
+ *  Characters beyond the capacity of the alphabet are counted, but are never generated. */
+public class SketchLanguageModel {
+
+    // The default number of rows of the sketch
+    public static final int DEFAULT_DEPTH = 4;
+
+    // The number of bytes of a slot of the heavy hitter table: a fingerprint (8 bytes),
+    // a count (4 bytes), and a bit set of 256 characters (32 bytes)
+    static final int SLOT_BYTES = 8 + 4 + 32;
+
+    // The number of bytes of the header of an array
+    private static final int ARRAY_BYTES = 16;
+
+    // The number of longs in the bit set of a slot
+    private static final int SET_LONGS = (Alphabet.CAPACITY + 1) / 64;
+
+    // The window length of this model
+    private final int windowLength;
+
+    // The random number generator used by this model
+    private final Random randomGenerator;
+
+    // Counts the windows and the (window, next character) pairs
+    private final CountMinSketch sketch;
+
+    // The largest number of windows the heavy hitter table holds
+    private final int maxContexts;
+
+    // The fingerprints of the windows of the table (0 = empty slot)
+    private final long[] keys;
+
+    // The estimated count of the window of each slot
+    private final int[] counts;
+
+    // The characters that followed the window of each slot: SET_LONGS longs per slot,
+    // bit i is set if the character with code i followed the window
+    private final long[] successors;
+
+    // The number of windows in the table
+    private int size;
+
+    // The counts of the windows of the table, sorted by evict to find the windows to drop
+    private final int[] evictCounts;
+
+    // Used to map a fingerprint to a slot: slot = fingerprint >>> shift
+    private final int shift;
+
+    // The characters of the corpus, used to index the bit sets
+    private final Alphabet alphabet;
+
+    // The last windowLength trained characters, the most recent one last
+    private final char[] history;
+
+    // The number of characters in the history (at most windowLength)
+    private int filled;
+
+    // The codes and the estimated counts of the characters sample chooses from
+    private final int[] sampleCodes = new int[Alphabet.CAPACITY + 1];
+    private final int[] sampleCounts = new int[Alphabet.CAPACITY + 1];
+
+    /** Constructs an approximate model with the given window length and seed, whose sketch
+     *  has the given width and depth, and whose table holds at most maxContexts windows. */
+    public SketchLanguageModel(int windowLength, int seed, int sketchWidth, int sketchDepth, int maxContexts) {
+        if (windowLength < 1 || maxContexts < 1 || maxContexts > (1 << 29)) {
+            throw new IllegalArgumentException("window length must be positive, and maxContexts between 1 and 2^29");
+        }
+        this.windowLength = windowLength;
+        this.randomGenerator = new Random(seed);
+        this.maxContexts = maxContexts;
+        sketch = new CountMinSketch(sketchWidth, sketchDepth);
+        // Keeps the table at most half full
+        int slots = Integer.highestOneBit(2 * maxContexts - 1) << 1;
+        keys = new long[slots];
+        counts = new int[slots];
+        successors = new long[slots * SET_LONGS];
+        evictCounts = new int[maxContexts];
+        shift = 64 - Integer.numberOfTrailingZeros(slots);
+        alphabet = new Alphabet();
+        history = new char[windowLength];
+    }
+
+    /** Constructs an approximate model with the given window length and seed, whose
+     *  memoryBytes() are at most the given number of bytes. The bytes that are left after the
+     *  alphabet and the other fixed arrays (about 66 KB) go up to half to the sketch (of
+     *  DEFAULT_DEPTH rows), and up to half to the heavy hitter table. (Both have a power of 2
+     *  of counters or slots, so they may use less.) */
+    public SketchLanguageModel(int windowLength, int seed, long maxBytes) {
+        this(windowLength, seed, powerOf2(availableBytes(windowLength, maxBytes) / 2 / 4 / DEFAULT_DEPTH, 1 << 30),
+             DEFAULT_DEPTH, powerOf2(availableBytes(windowLength, maxBytes) / 2 / (SLOT_BYTES + 2), 1 << 30) / 2);
+    }
+
+    // Returns the number of bytes, out of the given ones, left for the counters of the sketch,
+    // and the slots of the table (SLOT_BYTES, and half of an evictCounts entry, per slot).
+    // Throws an IllegalArgumentException if they don't fit 2 slots.
+    private static long availableBytes(int windowLength, long maxBytes) {
+        long available = maxBytes - fixedBytes(windowLength) - CountMinSketch.FIXED_BYTES;
+        if (available < 4 * (SLOT_BYTES + 2)) {
+            throw new IllegalArgumentException("maxBytes must be at least "
+                + (maxBytes - available + 4 * (SLOT_BYTES + 2)));
+        }
+        return available;
+    }
+
+    // Returns the number of bytes a model with the given window length uses whatever the size
+    // of its sketch and table: the alphabet (codes and symbols), the history, the arrays used
+    // by sample, and the headers of these arrays and of the arrays of the table.
+    private static long fixedBytes(int windowLength) {
+        return (Character.MAX_VALUE + 1) + 2 * (Alphabet.CAPACITY + 1) + 2L * windowLength
+            + 8 * (Alphabet.CAPACITY + 1) + 9 * ARRAY_BYTES;
+    }
+
+    // Returns the largest power of 2 that is at most the given value (and at most max),
+    // or 1 if the value is smaller.
+    private static int powerOf2(long value, int max) {
+        return (int) Math.max(Math.min(Long.highestOneBit(value), max), 1);
+    }
+
+    /** Returns the window length of this model. */
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    /** Returns the sketch of this model. */
+    public CountMinSketch getSketch() {
+        return sketch;
+    }
+
+    /** Returns the number of windows in the heavy hitter table. */
+    public int getContextCount() {
+        return size;
+    }
+
+    /** Returns an estimate of the number of bytes this model uses: the sketch, the table, the
+     *  alphabet (about 64 KB), and the arrays used for training and sampling. It is the same
+     *  before and after training. */
+    public long memoryBytes() {
+        return sketch.memoryBytes() + (long) keys.length * SLOT_BYTES + 4L * evictCounts.length
+            + fixedBytes(windowLength);
+    }
+
+    /** Trains this model on the text in the given file. Like LanguageModel.train, ignores the
+     *  trailing whitespace of the file. */
+    public void train(String fileName) {
+        filled = 0;
+        CorpusReader reader = new CorpusReader(fileName);
+        try {
+            reader.readTrimmed(this::trainChars);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Trains this model on the characters chars[from] .. chars[to - 1], which follow the
+    // characters in the history.
+    private void trainChars(char[] chars, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            int code = alphabet.add(c);
+            if (filled == windowLength) {
+                long window = fingerprint(history, 0, windowLength);
+                int count = sketch.add(window, 1);
+                sketch.add(pair(window, c), 1);
+                int slot = slotOf(window);
+                if (keys[slot] == 0) {
+                    if (size == maxContexts) {
+                        evict();
+                        slot = slotOf(window);
+                    }
+                    keys[slot] = window;
+                    size++;
+                }
+                counts[slot] = count;
+                if (code != 0) {
+                    successors[slot * SET_LONGS + (code >>> 6)] |= 1L << code;
+                }
+                System.arraycopy(history, 1, history, 0, windowLength - 1);
+            } else {
+                filled++;
+            }
+            history[filled - 1] = c;
+        }
+    }
+
+    /** Returns the estimated number of times the given character followed the given window.
+     *  The estimate is never lower than the true count. */
+    public int estimate(String window, char chr) {
+        if (window.length() != windowLength) {
+            throw new IllegalArgumentException("window length must be " + windowLength);
+        }
+        return sketch.estimate(pair(fingerprint(window.toCharArray(), 0, windowLength), chr));
+    }
+
+    /** Returns true if the given window is in the heavy hitter table (so it can be sampled). */
+    public boolean contains(String window) {
+        if (window.length() != windowLength) {
+            throw new IllegalArgumentException("window length must be " + windowLength);
+        }
+        return keys[slotOf(fingerprint(window.toCharArray(), 0, windowLength))] != 0;
+    }
+
+    /** Generates a random text, like LanguageModel.generate: starts with the last windowLength
+     *  characters of the given text, and adds up to textLength characters to them (fewer, if
+     *  the model reaches a window that is not in its table). */
+    public String generate(String initialText, int textLength) {
+        return generate(initialText, textLength, randomGenerator);
+    }
+
+    /** Generates a random text like generate(String, int), using the given random number
+     *  generator instead of the generator of this model. */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        if (initialText.length() < windowLength) {
+            return initialText;
+        }
+        char[] text = LanguageModel.newText(windowLength, textLength);
+        initialText.getChars(initialText.length() - windowLength, initialText.length(), text, 0);
+        int end = windowLength + Math.max(textLength, 0);
+        int i = windowLength;
+        while (i < end) {
+            if (i == text.length) {
+                text = LanguageModel.grow(text, end);
+            }
+            long window = fingerprint(text, i - windowLength, windowLength);
+            int slot = slotOf(window);
+            if (keys[slot] == 0) {
+                break;
+            }
+            text[i++] = sample(window, slot, random.nextDouble());
+        }
+        return new String(text, 0, i);
+    }
+
+    // Returns the character that the given random number selects among the characters that
+    // followed the window of the given slot, weighted by their estimated counts. The
+    // characters are taken in the order of their codes.
+    private char sample(long window, int slot, double random) {
+        int n = 0;
+        long total = 0;
+        for (int i = 0; i < SET_LONGS; i++) {
+            long bits = successors[slot * SET_LONGS + i];
+            while (bits != 0) {
+                int code = 64 * i + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                sampleCodes[n] = code;
+                sampleCounts[n] = sketch.estimate(pair(window, alphabet.charOf(code)));
+                total += sampleCounts[n];
+                n++;
+            }
+        }
+        if (n == 0) {
+            throw new IllegalStateException("Unable to determine a random character");
+        }
+        double target = random * total;
+        for (int i = 0; i < n - 1; i++) {
+            target -= sampleCounts[i];
+            if (target < 0) {
+                return alphabet.charOf(sampleCodes[i]);
+            }
+        }
+        return alphabet.charOf(sampleCodes[n - 1]);
+    }
+
+    // Drops the half of the windows of the table that have the lowest counts, and moves the
+    // others back toward their first slot, in place.
+    private void evict() {
+        int n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                evictCounts[n++] = counts[slot];
+            }
+        }
+        Arrays.sort(evictCounts, 0, n);
+        // Keeps the size / 2 windows with the highest counts: the windows above the threshold,
+        // and as many windows at the threshold as needed
+        int keep = size / 2;
+        int threshold = (keep == 0) ? Integer.MAX_VALUE : evictCounts[size - keep];
+        int atThreshold = 0;
+        for (int i = size - keep; i < size && evictCounts[i] == threshold; i++) {
+            atThreshold++;
+        }
+        int empty = -1;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0 && (counts[slot] < threshold || (counts[slot] == threshold && atThreshold-- <= 0))) {
+                clear(slot);
+            }
+            if (keys[slot] == 0) {
+                empty = slot;
+            }
+        }
+        // The table is at most half full, so it has an empty slot. Starting after it, no run
+        // of windows wraps around: each window moves to the first free slot of its run, which
+        // the windows before it were already moved out of.
+        int mask = keys.length - 1;
+        for (int i = 1; i < keys.length; i++) {
+            int slot = (empty + i) & mask;
+            long window = keys[slot];
+            if (window != 0) {
+                keys[slot] = 0;
+                int to = slotOf(window);
+                keys[to] = window;
+                if (to != slot) {
+                    counts[to] = counts[slot];
+                    System.arraycopy(successors, slot * SET_LONGS, successors, to * SET_LONGS, SET_LONGS);
+                    clear(slot);
+                }
+            }
+        }
+        size = keep;
+    }
+
+    // Empties the given slot.
+    private void clear(int slot) {
+        keys[slot] = 0;
+        Arrays.fill(successors, slot * SET_LONGS, (slot + 1) * SET_LONGS, 0);
+    }
+
+    // Returns the slot of the given window, or the empty slot where it would go.
+    private int slotOf(long window) {
+        int mask = keys.length - 1;
+        int slot = (int) (window >>> shift);
+        while (keys[slot] != 0 && keys[slot] != window) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Returns the fingerprint of the given characters (never 0).
+    private static long fingerprint(char[] text, int from, int length) {
+        long h = 0;
+        for (int i = from; i < from + length; i++) {
+            h = (h + text[i] + 1) * 0x9E3779B97F4A7C15L;
+        }
+        h = CountMinSketch.mix(h);
+        return (h == 0) ? 1 : h;
+    }
+
+    // Returns the sketch item of the given window and next character.
+    private static long pair(long window, char chr) {
+        return window ^ CountMinSketch.mix(chr + 1L);
+    }
+}